@@ -0,0 +1,105 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+import demo.weilikai.simpleasr.util.MfccFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 基准测试共用的数据：模型目录（系统属性 asr.model，默认 assets/simple_asr/asr_model）中的录音和由它构建的模板
+ */
+public final class BenchmarkData {
+
+    public static final String MODEL_DIR = System.getProperty("asr.model", "assets/simple_asr/asr_model");
+
+    private static SimpleDec decoder; // 每个 fork 只从录音构建一次模板
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return 模型目录中的录音文件，按文件名排序
+     */
+    public static File[] files() {
+        File[] files = Objects.requireNonNull(new File(MODEL_DIR).listFiles(), "找不到模型目录：" + MODEL_DIR);
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 依次拼接模型目录中的录音，直到凑够指定的采样点数
+     */
+    public static short[] audio(int length) throws IOException {
+        short[] out = new short[length];
+        int filled = 0;
+        while (filled < length) {
+            for (File file : files()) {
+                short[] samples = MfccFeature.loadSamples(file);
+                int n = Math.min(samples.length, length - filled);
+                System.arraycopy(samples, 0, out, filled, n);
+                filled += n;
+                if (filled == length) {
+                    break;
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * 依次拼接模板，截取成指定帧数的输入
+     */
+    static double[][] utterance(TemplateStore store, int frames) {
+        double[][] out = new double[frames][];
+        int filled = 0;
+        for (int t = 0; filled < frames; t = (t + 1) % store.size()) {
+            for (double[] frame : store.frames(t)) {
+                if (filled == frames) {
+                    break;
+                }
+                out[filled++] = frame;
+            }
+        }
+        return out;
+    }
+
+    /**
+     * @return 从模型目录的录音构建的解码器，各基准只读取其中的模板
+     */
+    static synchronized SimpleDec decoder() throws IOException {
+        if (null == decoder) {
+            SimpleDec d = new SimpleDec();
+            d.loadModel(MODEL_DIR);
+            decoder = d;
+        }
+        return decoder;
+    }
+
+    /**
+     * 丢弃识别过程中逐句打印的日志，避免控制台输出混入计时
+     */
+    public static void quiet() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    /**
+     * @return 一句话对应的 MFCC 帧数
+     */
+    static int frames(int utteranceMs) {
+        return utteranceMs * MFCC.SAMPLE_RATE / 1000 / MFCC.FRAME_SHIFT;
+    }
+}
@@ -0,0 +1,74 @@
+package demo.weilikai.simpleasr;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解码器的微基准：离线的 SimpleDec.recognize 和逐帧推进的 OnlineDec
+ * <p>
+ * 模板取自模型目录的录音，循环复制到 templateCount 个；输入由模板依次拼接后截取到 utteranceMs 的长度。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DecoderBenchmark {
+
+    @Param({"1000", "3000"})
+    public int utteranceMs;
+
+    @Param({"47", "200", "800"})
+    public int templateCount;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private SimpleDec decoder;
+    private double[][] input;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData.quiet();
+        TemplateStore store = BenchmarkData.decoder().templates();
+        List<double[][]> templates = new ArrayList<>();
+        int[] wordIds = new int[templateCount];
+        for (int t = 0; t < templateCount; t++) {
+            templates.add(store.frames(t % store.size()));
+            wordIds[t] = store.wordId(t % store.size());
+        }
+        decoder = new SimpleDec();
+        decoder.replaceTemplates(TemplateStore.of(store.words(), wordIds, templates, store.dim(), TemplateStore.Encoding.FLOAT64, false));
+        decoder.mParallelism = parallelism;
+        input = BenchmarkData.utterance(store, BenchmarkData.frames(utteranceMs));
+    }
+
+    @Benchmark
+    public String recognize() {
+        return decoder.recognize(input);
+    }
+
+    @Benchmark
+    public String online() {
+        OnlineDec online = decoder.online();
+        for (double[] frame : input) {
+            online.advance(frame);
+        }
+        return online.finish();
+    }
+}
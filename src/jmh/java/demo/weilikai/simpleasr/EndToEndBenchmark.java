@@ -0,0 +1,134 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.util.MfccFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端基准：把模型目录中的录音按 25ms 一块送入 AsrStream，经过 MFCC、VAD 和解码得到每句话的结果
+ * <p>
+ * replay 以吞吐量报告回放全部录音的速度，endOfSpeech 以采样方式报告从说话结束的那一块音频到拿到结果的延迟分位数。
+ * 直接运行 main 时附带 GC profiler，报告每次操作的分配量：
+ * <pre>
+ * mvn -Pjmh package
+ * java -cp target/benchmarks.jar demo.weilikai.simpleasr.EndToEndBenchmark
+ * </pre>
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EndToEndBenchmark {
+
+    @Param({"true", "false"})
+    public boolean onlineDecoding;
+
+    private SimpleAsr asr;
+    private final List<List<short[]>> recordings = new ArrayList<>(); // 每个录音文件切成的音频块
+    private final List<int[]> utterances = new ArrayList<>(); // {文件, 起始块, 说话结束的块}
+    private int next = 0;
+
+    // endOfSpeech 每次调用前准备好的状态
+    private AsrStream stream;
+    private short[] lastChunk;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkData.quiet();
+        asr = new SimpleAsr();
+        asr.recordSessions = false;
+        asr.onlineDecoding = onlineDecoding;
+        asr.decoder = BenchmarkData.decoder();
+        for (File file : BenchmarkData.files()) {
+            recordings.add(MfccFeature.sample2Group(MfccFeature.loadSamples(file), 400));
+        }
+        // 每句话从上一句结束之后开始，用新的 AsrStream 找出说话结束的那一块
+        for (int f = 0; f < recordings.size(); f++) {
+            List<short[]> chunks = recordings.get(f);
+            int start = 0;
+            AsrStream probe = new AsrStream(asr);
+            for (int c = 0; c < chunks.size(); c++) {
+                SimpleAsr.AsrSession finished = probe.accept(chunks.get(c));
+                if (null != finished) {
+                    finished.close();
+                    utterances.add(new int[]{f, start, c});
+                    start = c + 1;
+                    probe = new AsrStream(asr);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public int replay() throws IOException {
+        int sessions = 0;
+        for (List<short[]> chunks : recordings) {
+            AsrStream replay = new AsrStream(asr);
+            for (short[] chunk : chunks) {
+                SimpleAsr.AsrSession finished = replay.accept(chunk);
+                if (null != finished) {
+                    finished.detect();
+                    sessions++;
+                }
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * 送入下一句话说话结束之前的所有音频块
+     */
+    @Setup(Level.Invocation)
+    public void prepareUtterance() throws IOException {
+        int[] utterance = utterances.get(next);
+        next = (next + 1) % utterances.size();
+        List<short[]> chunks = recordings.get(utterance[0]);
+        stream = new AsrStream(asr);
+        for (int c = utterance[1]; c < utterance[2]; c++) {
+            stream.accept(chunks.get(c));
+        }
+        lastChunk = chunks.get(utterance[2]);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public String endOfSpeech() throws IOException {
+        SimpleAsr.AsrSession finished = stream.accept(lastChunk);
+        if (null == finished) {
+            throw new IllegalStateException("说话没有在预期的音频块结束");
+        }
+        return finished.detect();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(EndToEndBenchmark.class.getName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
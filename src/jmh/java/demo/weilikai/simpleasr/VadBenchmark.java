@@ -0,0 +1,66 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+import demo.weilikai.simpleasr.util.MfccFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * VAD 的微基准：在同一段 10 秒的录音上，比较基于 MFCC c0 的状态机和旧的逐块计算分贝值
+ * <p>
+ * 两者都按每 10ms 音频报告一次操作的耗时。状态机的输入是已经提取好的特征，不含 MFCC 本身的开销。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class VadBenchmark {
+
+    static final int FRAMES = 1000; // 10 秒音频的 MFCC 帧数
+
+    private double[][] features;
+    private List<short[]> chunks;
+
+    @Setup
+    public void setup() throws IOException {
+        short[] audio = BenchmarkData.audio(FRAMES * MFCC.FRAME_SHIFT + MFCC.FRAME_SIZE);
+        chunks = MfccFeature.sample2Group(audio, MFCC.FRAME_SIZE);
+        features = new MFCC().mfccWithStride(audio, 10).subList(0, FRAMES).toArray(new double[0][]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int detectVoiceActivityFSM() {
+        SimpleVad vad = new SimpleVad();
+        int states = 0;
+        for (double[] feature : features) {
+            states += vad.detectVoiceActivityFSM(feature);
+        }
+        return states;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public double calculateDecibel() {
+        double sum = 0;
+        for (short[] chunk : chunks) {
+            sum += SimpleVad.calculateDecibel(chunk);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,187 @@
+package demo.weilikai.simpleasr.mfcc;
+
+import demo.weilikai.simpleasr.BenchmarkData;
+import demo.weilikai.simpleasr.util.MfccFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MFCC 前端的微基准：按 25ms 一块流式提取整句话的 MFCC，以及单帧的 FFT 和梅尔滤波器组
+ * <p>
+ * 音频取自 BenchmarkData 的模型目录中的录音，按需循环拼接。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrontEndBenchmark {
+
+    /**
+     * 一句话的音频，按 AsrStream 的方式切成 25ms 一块
+     */
+    @State(Scope.Thread)
+    public static class Utterance {
+        @Param({"1000", "3000", "10000"})
+        public int utteranceMs;
+
+        List<short[]> chunks;
+
+        @Setup
+        public void setup() throws IOException {
+            chunks = MfccFeature.sample2Group(BenchmarkData.audio(utteranceMs * MFCC.SAMPLE_RATE / 1000), MFCC.FRAME_SIZE);
+        }
+    }
+
+    /**
+     * 一帧补零到 FFT 长度的音频，以及各阶段复用的输出缓存
+     */
+    @State(Scope.Thread)
+    public static class Frame {
+        final MfccConfig config = MfccConfig.DEFAULT;
+        FFT fft;
+        double[] signal;
+        double[] energies;
+        double[] melEnergy;
+
+        @Setup
+        public void setup() throws IOException {
+            short[] samples = BenchmarkData.audio(config.frameSize);
+            fft = new FFT(config.fftSize);
+            signal = new double[config.fftSize];
+            for (int i = 0; i < samples.length; i++) {
+                signal[i] = samples[i] * config.window[i];
+            }
+            energies = new double[config.fftSize];
+            fft.computeEnergies(signal, energies);
+            melEnergy = new double[config.numFilters];
+        }
+    }
+
+    @Benchmark
+    public void mfccWithStride(Utterance utterance, Blackhole blackhole) {
+        MFCC mfcc = new MFCC(MFCC.FRAME_SIZE * 8);
+        for (short[] chunk : utterance.chunks) {
+            blackhole.consume(mfcc.mfccWithStride(chunk, 10));
+        }
+    }
+
+    /**
+     * 旧的递归、逐个分配复数对象的 FFT，作为对照
+     */
+    @Benchmark
+    public RecursiveFft.Complex[] fft(Frame frame) {
+        return RecursiveFft.fft(frame.signal);
+    }
+
+    @Benchmark
+    public double[] fftEnergiesRecursive(Frame frame) {
+        return RecursiveFft.computeFftEnergies(frame.signal);
+    }
+
+    @Benchmark
+    public double[] fftEnergies(Frame frame) {
+        frame.fft.computeEnergies(frame.signal, frame.energies);
+        return frame.energies;
+    }
+
+    @Benchmark
+    public double[] melFilterBank(Frame frame) {
+        frame.config.filterBank.process(frame.energies, frame.melEnergy);
+        return frame.melEnergy;
+    }
+
+    /**
+     * 改写前 FFT 的原样副本：主代码中的 FFT.fft 已改为包装迭代实现，对照必须保留旧的算法本身
+     */
+    static final class RecursiveFft {
+
+        static Complex[] fft(double[] x) {
+            int n = x.length;
+
+            // Base case: a single sample, mfcc.FFT is the sample itself
+            if (n == 1) {
+                return new Complex[]{new Complex(x[0], 0)};
+            }
+
+            // Check if the input length is a power of 2
+            if (Integer.bitCount(n) != 1) {
+                throw new IllegalArgumentException("Input length must be a power of 2");
+            }
+
+            // Split input into even and odd parts
+            double[] even = new double[n / 2];
+            double[] odd = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                even[i] = x[2 * i];
+                odd[i] = x[2 * i + 1];
+            }
+
+            // Compute mfcc.FFT of even and odd parts
+            Complex[] evenFFT = fft(even);
+            Complex[] oddFFT = fft(odd);
+
+            // Combine even and odd mfcc.FFT results
+            Complex[] result = new Complex[n];
+            for (int i = 0; i < n / 2; i++) {
+                double theta = -2 * Math.PI * i / n;
+                Complex t = new Complex(Math.cos(theta), Math.sin(theta)).multiply(oddFFT[i]);
+                result[i] = evenFFT[i].add(t);
+                result[i + n / 2] = evenFFT[i].subtract(t);
+            }
+
+            return result;
+        }
+
+        static double[] computeFftEnergies(double[] x) {
+            Complex[] fftResult = fft(x);
+            double[] energy = new double[fftResult.length];
+            for (int i = 0; i < fftResult.length; i++) {
+                energy[i] = fftResult[i].energy();
+            }
+            return energy;
+        }
+
+        static final class Complex {
+            private final double real;
+            private final double imaginary;
+
+            Complex(double real, double imaginary) {
+                this.real = real;
+                this.imaginary = imaginary;
+            }
+
+            Complex add(Complex other) {
+                return new Complex(this.real + other.real, this.imaginary + other.imaginary);
+            }
+
+            Complex subtract(Complex other) {
+                return new Complex(this.real - other.real, this.imaginary - other.imaginary);
+            }
+
+            Complex multiply(Complex other) {
+                double newReal = this.real * other.real - this.imaginary * other.imaginary;
+                double newImaginary = this.real * other.imaginary + this.imaginary * other.real;
+                return new Complex(newReal, newImaginary);
+            }
+
+            double energy() {
+                return real * real + imaginary * imaginary;
+            }
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package demo.weilikai.simpleasr;
 
+import java.io.File;
 import java.io.IOException;
 
 public class AsrDemo extends SimpleAsr {
     public static void main(String[] args) throws IOException {
         SimpleAsr asr = new SimpleAsr();
-        asr.init("assets/simple_asr/asr_model");
+        // 优先使用 ModelCompiler 预编译好的模型文件，没有时才从原始录音提取特征
+        File compiledModel = new File("assets/simple_asr/asr_model.bin");
+        asr.init(compiledModel.isFile() ? compiledModel.getPath() : "assets/simple_asr/asr_model");
         asr.start();
     }
 }
@@ -0,0 +1,54 @@
+package demo.weilikai.simpleasr;
+
+/**
+ * 每句话解码的 JFR 事件
+ * <p>
+ * 默认实现什么也不做，可在 Java 8 上运行。在 Java 17 及以上版本中，多版本 JAR 的 META-INF/versions/17
+ * 里另有一份基于 jdk.jfr 的实现，启动时若能加载则自动选用；没有开启飞行记录或没有启用该事件时，
+ * 每句话只多一次事件对象的分配。开启方式例如：
+ * <pre>
+ * java -XX:StartFlightRecording=filename=asr.jfr ...
+ * jfr print --events demo.weilikai.simpleasr.Decode asr.jfr
+ * </pre>
+ */
+abstract class AsrEvents {
+
+    private static final AsrEvents INSTANCE = select();
+
+    static AsrEvents get() {
+        return INSTANCE;
+    }
+
+    private static AsrEvents select() {
+        try {
+            Class<?> type = Class.forName(AsrEvents.class.getPackage().getName() + ".JfrAsrEvents");
+            return (AsrEvents) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // 运行在 Java 17 以下，或者不是从多版本 JAR 加载
+            return new AsrEvents() {
+            };
+        }
+    }
+
+    /**
+     * 开始计时一句话的解码
+     *
+     * @return 传给 endDecode 的事件，不需要记录时返回 null
+     */
+    Object beginDecode() {
+        return null;
+    }
+
+    /**
+     * 结束计时并提交事件
+     *
+     * @param event       beginDecode 返回的事件
+     * @param sessionId   句子的会话编号
+     * @param frames      MFCC 帧数
+     * @param online      是否在线解码
+     * @param speculative 是否采用了推测解码的结果
+     * @param result      识别结果，拒识时为 null
+     */
+    void endDecode(Object event, String sessionId, int frames, boolean online, boolean speculative, String result) {
+    }
+}
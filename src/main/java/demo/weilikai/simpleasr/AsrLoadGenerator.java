@@ -0,0 +1,167 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.util.MfccFeature;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AsrServer 的回环压测工具：在同一进程内启动识别服务，用单个 NIO 线程模拟大量并发音频流
+ * <p>
+ * 用法：AsrLoadGenerator [流数] [持续秒数] [说话的流所占比例] [录音文件]
+ * 说话的流按实时速度循环发送录音文件，其余的流发送静音，用来模拟大量空闲连接。
+ */
+public class AsrLoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        int streams = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        double activeRatio = args.length > 2 ? Double.parseDouble(args[2]) : 0.1;
+        File audio = new File(args.length > 3 ? args[3] : "assets/simple_asr/asr_model/确定.merged");
+
+        SimpleAsr asr = new SimpleAsr();
+        asr.recordSessions = false;
+        asr.decoder.mParallelism = 1;
+        File compiled = new File("assets/simple_asr/asr_model.bin");
+        asr.init(compiled.isFile() ? compiled.getPath() : "assets/simple_asr/asr_model");
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        try (AsrServer server = new AsrServer(asr, new InetSocketAddress("127.0.0.1", 0), 1, cores)) {
+            server.start();
+            run(server, streams, seconds, activeRatio, MfccFeature.loadSamples(audio));
+        }
+    }
+
+    private static void run(AsrServer server, int streams, int seconds, double activeRatio, short[] samples) throws IOException {
+        int frameSamples = AsrServer.FRAME_SAMPLES;
+        int frameBytes = frameSamples * 2;
+        int frameCount = samples.length / frameSamples;
+        ByteBuffer silence = message(new short[frameSamples], 0, frameSamples);
+
+        Selector selector = Selector.open();
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < streams; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.port()));
+            channel.configureBlocking(false);
+            Client client = new Client(channel, i < streams * activeRatio, i % Math.max(1, frameCount));
+            channel.register(selector, SelectionKey.OP_READ, client);
+            clients.add(client);
+        }
+        System.out.printf("已连接 %d 路音频流，其中 %d 路在说话%n", streams,
+                clients.stream().filter(c -> c.speaking).count());
+
+        long start = System.nanoTime();
+        long tickNanos = SimpleVad.FRAME_LENGTH_MS * 1_000_000L;
+        long nextTick = start;
+        long framesSent = 0;
+        long backpressured = 0;
+        long results = 0;
+        long earlyResults = 0;
+        long rejected = 0;
+        ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+        while (System.nanoTime() - start < seconds * 1_000_000_000L) {
+            long now = System.nanoTime();
+            if (now >= nextTick) {
+                nextTick += tickNanos;
+                for (Client client : clients) {
+                    if (null != client.unsent) {
+                        // 上一帧还没发完，说明服务端在施加背压
+                        client.channel.write(client.unsent);
+                        if (client.unsent.hasRemaining()) {
+                            backpressured++;
+                            continue;
+                        }
+                    }
+                    ByteBuffer frame;
+                    if (client.speaking) {
+                        frame = message(samples, client.position * frameSamples, frameSamples);
+                        client.position = (client.position + 1) % frameCount;
+                    } else {
+                        frame = silence.duplicate();
+                    }
+                    client.channel.write(frame);
+                    client.unsent = frame.hasRemaining() ? frame : null;
+                    framesSent++;
+                }
+            }
+
+            selector.select(Math.max(1, (nextTick - System.nanoTime()) / 1_000_000));
+            for (SelectionKey key : selector.selectedKeys()) {
+                Client client = (Client) key.attachment();
+                readBuffer.clear();
+                if (client.channel.read(readBuffer) < 0) {
+                    key.cancel();
+                    continue;
+                }
+                readBuffer.flip();
+                client.inbox.put(readBuffer);
+                client.inbox.flip();
+                while (client.inbox.remaining() >= AsrServer.HEADER_SIZE) {
+                    client.inbox.mark();
+                    byte type = client.inbox.get();
+                    int length = client.inbox.getInt();
+                    if (client.inbox.remaining() < length) {
+                        client.inbox.reset();
+                        break;
+                    }
+                    client.inbox.position(client.inbox.position() + length);
+                    if (type == AsrServer.TYPE_RESULT) {
+                        results++;
+                        if (length == 0) {
+                            rejected++;
+                        }
+                    } else if (type == AsrServer.TYPE_EARLY_RESULT) {
+                        earlyResults++;
+                    }
+                }
+                client.inbox.compact();
+            }
+            selector.selectedKeys().clear();
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("耗时 %.1f 秒，发送 %d 帧（%.1f 秒音频，实时倍数 %.2f），背压 %d 次%n",
+                elapsed, framesSent, framesSent * frameBytes / 2.0 / SimpleVad.SAMPLE_RATE,
+                framesSent * SimpleVad.FRAME_LENGTH_MS / 1000.0 / elapsed, backpressured);
+        System.out.printf("识别结果 %d 个（拒识 %d 个），提前结果 %d 个，服务端活动流 %d 路%n",
+                results, rejected, earlyResults, server.activeStreams());
+        for (Client client : clients) {
+            client.channel.close();
+        }
+        selector.close();
+    }
+
+    private static ByteBuffer message(short[] samples, int offset, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(AsrServer.HEADER_SIZE + count * 2);
+        buffer.put(AsrServer.TYPE_AUDIO).putInt(count * 2);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            buffer.putShort(samples[offset + i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class Client {
+        final SocketChannel channel;
+        final boolean speaking;
+        final ByteBuffer inbox = ByteBuffer.allocate(64 * 1024);
+        int position;
+        ByteBuffer unsent;
+
+        Client(SocketChannel channel, boolean speaking, int position) {
+            this.channel = channel;
+            this.speaking = speaking;
+            this.position = position;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package demo.weilikai.simpleasr;
+
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * 识别库和识别服务共用的日志，输出到 System.err，标准输出只留给识别结果和命令行工具的报告
+ * <p>
+ * 没有通过 java.util.logging 的配置文件为该日志指定 handler 时，按“级别：消息”一行一条输出。
+ * 默认只输出 INFO 及以上；-Dsimpleasr.verbose=true 时还输出 FINE 级别的提示，例如模型编译时与当前使用的计算内核不同。
+ */
+final class AsrLog {
+
+    static final Logger LOGGER = Logger.getLogger("demo.weilikai.simpleasr");
+
+    static {
+        if (LOGGER.getHandlers().length == 0) {
+            ConsoleHandler handler = new ConsoleHandler();
+            handler.setLevel(Level.ALL);
+            handler.setFormatter(new Formatter() {
+                @Override
+                public String format(LogRecord record) {
+                    return record.getLevel().getLocalizedName() + "：" + formatMessage(record) + System.lineSeparator();
+                }
+            });
+            LOGGER.addHandler(handler);
+            LOGGER.setUseParentHandlers(false);
+        }
+        if (Boolean.getBoolean("simpleasr.verbose")) {
+            LOGGER.setLevel(Level.FINE);
+        }
+    }
+
+    private AsrLog() {
+    }
+
+    static void info(String message) {
+        LOGGER.info(message);
+    }
+
+    static void warning(String message) {
+        LOGGER.warning(message);
+    }
+
+    static void fine(String message) {
+        LOGGER.fine(message);
+    }
+}
@@ -0,0 +1,128 @@
+package demo.weilikai.simpleasr;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内所有识别器共用的指标，第一次使用时注册到平台 MBeanServer
+ * <p>
+ * 记录一次耗时或计数只是几次无竞争的内存写入，没有锁，也不打印日志；只有通过 JMX 读取时才汇总，
+ * 因此没人读取时几乎没有开销。
+ */
+final class AsrMetrics implements AsrMetricsMXBean {
+
+    static final String OBJECT_NAME = "demo.weilikai.simpleasr:type=AsrMetrics";
+
+    private static final AsrMetrics INSTANCE = register(new AsrMetrics());
+
+    final LatencyHistogram capture = new LatencyHistogram();
+    final LatencyHistogram mfcc = new LatencyHistogram();
+    final LatencyHistogram vad = new LatencyHistogram();
+    final LatencyHistogram dtw = new LatencyHistogram();
+    final LatencyHistogram reject = new LatencyHistogram();
+    final LatencyHistogram decode = new LatencyHistogram();
+    final LongAdder utterances = new LongAdder();
+    final LongAdder rejections = new LongAdder();
+    final LongAdder templatesPruned = new LongAdder();
+    final LongAdder queueOverflows = new LongAdder();
+    final LongAdder earlyMismatches = new LongAdder();
+    final AtomicInteger activeSessions = new AtomicInteger();
+    volatile int templateCount;
+
+    // reset 时的计数，读取时减去
+    private volatile long[] baseline = new long[5];
+
+    private AsrMetrics() {
+    }
+
+    static AsrMetrics get() {
+        return INSTANCE;
+    }
+
+    private static AsrMetrics register(AsrMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // 指标仍然可以在进程内读取
+            AsrLog.warning("无法注册 JMX 指标：" + e);
+        }
+        return metrics;
+    }
+
+    @Override
+    public Latency getCapture() {
+        return capture.snapshot();
+    }
+
+    @Override
+    public Latency getMfcc() {
+        return mfcc.snapshot();
+    }
+
+    @Override
+    public Latency getVad() {
+        return vad.snapshot();
+    }
+
+    @Override
+    public Latency getDtw() {
+        return dtw.snapshot();
+    }
+
+    @Override
+    public Latency getReject() {
+        return reject.snapshot();
+    }
+
+    @Override
+    public Latency getDecode() {
+        return decode.snapshot();
+    }
+
+    @Override
+    public long getUtterances() {
+        return utterances.sum() - baseline[0];
+    }
+
+    @Override
+    public long getRejections() {
+        return rejections.sum() - baseline[1];
+    }
+
+    @Override
+    public long getTemplatesPruned() {
+        return templatesPruned.sum() - baseline[2];
+    }
+
+    @Override
+    public long getQueueOverflows() {
+        return queueOverflows.sum() - baseline[3];
+    }
+
+    @Override
+    public long getEarlyMismatches() {
+        return earlyMismatches.sum() - baseline[4];
+    }
+
+    @Override
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    @Override
+    public int getTemplateCount() {
+        return templateCount;
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : new LatencyHistogram[]{capture, mfcc, vad, dtw, reject, decode}) {
+            histogram.reset();
+        }
+        baseline = new long[]{utterances.sum(), rejections.sum(), templatesPruned.sum(), queueOverflows.sum(),
+                earlyMismatches.sum()};
+    }
+}
@@ -0,0 +1,124 @@
+package demo.weilikai.simpleasr;
+
+/**
+ * 识别各阶段的指标，通过 JMX 以 demo.weilikai.simpleasr:type=AsrMetrics 导出，可以用 jconsole 或 VisualVM 查看
+ * <p>
+ * 耗时为近似的分位数（微秒），由 LatencyHistogram 统计，相对误差不超过 25%。
+ */
+public interface AsrMetricsMXBean {
+
+    /**
+     * 采集阶段读取一帧 25ms 音频的耗时，包括等待声卡的时间
+     */
+    Latency getCapture();
+
+    /**
+     * 每送入一块音频提取 MFCC 的耗时
+     */
+    Latency getMfcc();
+
+    /**
+     * 每帧 MFCC 的 VAD 判定耗时
+     */
+    Latency getVad();
+
+    /**
+     * 每句话的 DTW 打分耗时，在线解码时为说话过程中逐帧推进的总耗时
+     */
+    Latency getDtw();
+
+    /**
+     * 每句话根据各词得分判决和拒识的耗时
+     */
+    Latency getReject();
+
+    /**
+     * 每句话从说话结束到给出结果的耗时
+     */
+    Latency getDecode();
+
+    long getUtterances();
+
+    long getRejections();
+
+    /**
+     * 被下界或近邻索引剪枝、没有计算完整 DTW 的模板数
+     */
+    long getTemplatesPruned();
+
+    /**
+     * 识别流水线中因队列已满而丢弃的音频帧数和句子数
+     */
+    long getQueueOverflows();
+
+    /**
+     * 在线解码提前给出的结果与说话结束时的最终结果不一致的句子数
+     */
+    long getEarlyMismatches();
+
+    /**
+     * 已开始但尚未结束的句子数
+     */
+    int getActiveSessions();
+
+    /**
+     * 当前加载的模板数
+     */
+    int getTemplateCount();
+
+    /**
+     * 清零耗时和计数，从现在开始重新统计；活跃句子数和模板数不受影响
+     */
+    void reset();
+
+    /**
+     * 一个阶段的耗时统计
+     */
+    final class Latency {
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double maxMicros;
+
+        Latency(long count, double meanMicros, double p50Micros, double p90Micros, double p99Micros, double maxMicros) {
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus",
+                    count, meanMicros, p50Micros, p90Micros, p99Micros, maxMicros);
+        }
+    }
+}
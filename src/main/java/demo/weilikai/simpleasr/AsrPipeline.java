@@ -0,0 +1,135 @@
+package demo.weilikai.simpleasr;
+
+import java.io.IOException;
+
+/**
+ * 识别流水线：采集线程 → PCM 帧队列 → VAD/特征线程 → 会话队列 → 解码线程
+ * <p>
+ * 各阶段之间是容量固定的无锁单生产者单消费者队列，队列满时丢弃并计数，因此采集线程永远不会因为识别而阻塞，
+ * 解码期间麦克风的数据也会被及时读走。
+ */
+class AsrPipeline {
+
+    private final SimpleAsr asr;
+    private final SimpleMic mic;
+    final SpscRing<short[]> frameQueue;
+    final SpscRing<SimpleAsr.AsrSession> sessionQueue;
+
+    private volatile boolean running = true;
+    private volatile Exception failure;
+    private Thread[] threads;
+
+    /**
+     * @param asr                  识别器
+     * @param mic                  麦克风
+     * @param frameQueueCapacity   PCM 帧队列容量（每帧 25ms）
+     * @param sessionQueueCapacity 等待解码的句子队列容量
+     */
+    AsrPipeline(SimpleAsr asr, SimpleMic mic, int frameQueueCapacity, int sessionQueueCapacity) {
+        this.asr = asr;
+        this.mic = mic;
+        this.frameQueue = new SpscRing<>(frameQueueCapacity);
+        this.sessionQueue = new SpscRing<>(sessionQueueCapacity);
+    }
+
+    /**
+     * 启动所有阶段并等待其结束，任一阶段出错时停止整个流水线
+     *
+     * @throws IOException 某个阶段出错
+     */
+    void run() throws IOException {
+        threads = new Thread[]{
+                new Thread(() -> stage(this::capture), "asr-capture"),
+                new Thread(() -> stage(this::frontEnd), "asr-frontend"),
+                new Thread(() -> stage(this::decode), "asr-decoder"),
+        };
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+        }
+        if (null != failure) {
+            throw new IOException(failure);
+        }
+    }
+
+    void stop() {
+        running = false;
+        if (null != threads) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return 采集阶段因帧队列已满而丢弃的帧数
+     */
+    long frameOverflows() {
+        return frameQueue.overflows();
+    }
+
+    /**
+     * @return 因解码队列已满而丢弃的句子数
+     */
+    long sessionOverflows() {
+        return sessionQueue.overflows();
+    }
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private void stage(Stage stage) {
+        try {
+            stage.run();
+        } catch (InterruptedException e) {
+            // 流水线停止
+        } catch (Exception e) {
+            if (running) {
+                failure = e;
+            }
+            stop();
+        }
+    }
+
+    private void capture() throws IOException {
+        AsrMetrics metrics = AsrMetrics.get();
+        while (running) {
+            long start = System.nanoTime();
+            short[] signals = mic.read();
+            metrics.capture.recordSince(start);
+            // 队列满时直接丢弃这一帧，不等待下游
+            if (!frameQueue.offer(signals)) {
+                metrics.queueOverflows.increment();
+            }
+        }
+    }
+
+    private void frontEnd() throws IOException, InterruptedException {
+        AsrStream stream = new AsrStream(asr);
+        while (running) {
+            SimpleAsr.AsrSession finished = stream.accept(frameQueue.take());
+            for (KeywordSpotter.Detection detection : stream.takeDetections()) {
+                System.out.println("唤醒词：" + detection);
+            }
+            if (null != finished && !sessionQueue.offer(finished)) {
+                AsrMetrics.get().queueOverflows.increment();
+                AsrLog.warning("解码队列已满，丢弃句子，累计丢弃：" + sessionQueue.overflows());
+                finished.close();
+            }
+        }
+    }
+
+    private void decode() throws IOException, InterruptedException {
+        while (running) {
+            sessionQueue.take().detect();
+        }
+    }
+}
@@ -0,0 +1,483 @@
+package demo.weilikai.simpleasr;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多路识别服务：一个进程同时接收多路 PCM 音频流，所有连接共享同一个已加载的 SimpleDec 模板
+ * <p>
+ * 协议：双向都是 1 字节类型 + 4 字节大端长度 + 负载的消息。
+ * 客户端发送 AUDIO（16k 16bit 单声道小端 PCM，任意长度）和 END（结束本路音频）；
+ * 服务端对每句话回复 EARLY_RESULT（说话过程中提前确定的结果）和 RESULT（最终结果，拒识时负载为空），负载为 UTF-8 文本；
+ * 配置了唤醒词时，检出后立即回复 WAKE，负载为“唤醒词\t开始毫秒\t结束毫秒”，时刻从该路音频开始计。
+ * <p>
+ * 少量 NIO 事件循环线程负责收发数据和分帧，VAD、特征提取和解码在共享的工作线程池上按连接串行执行。
+ * 某个连接积压的未处理帧超过 maxPendingFrames 时暂停读取该连接，降到一半以下再恢复，以此对客户端施加背压。
+ * 空闲连接只占用前端、VAD 的状态和约 250ms 的预录音，因此可以同时挂载大量空闲的音频流。
+ */
+public class AsrServer implements Closeable {
+
+    static final byte TYPE_AUDIO = 1;
+    static final byte TYPE_END = 2;
+    static final byte TYPE_RESULT = 3;
+    static final byte TYPE_EARLY_RESULT = 4;
+    static final byte TYPE_WAKE = 5;
+    static final int HEADER_SIZE = 5;
+    static final int FRAME_SAMPLES = SimpleVad.FRAME_LENGTH_MS * SimpleVad.SAMPLE_RATE / 1000;
+
+    private final SimpleAsr asr;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private volatile boolean running = true;
+
+    int maxPendingFrames = 64; // 每个连接允许积压的未处理帧数，约 1.6 秒音频
+
+    /**
+     * @param asr           已加载模型的识别器
+     * @param address       监听地址
+     * @param eventLoops    事件循环线程数
+     * @param workerThreads 处理音频的工作线程数
+     * @throws IOException 监听失败
+     */
+    public AsrServer(SimpleAsr asr, InetSocketAddress address, int eventLoops, int workerThreads) throws IOException {
+        this.asr = asr;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, "asr-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loops[0].execute(() -> serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT, this));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9500;
+        String model = args.length > 1 ? args[1] : "assets/simple_asr/asr_model.bin";
+        SimpleAsr asr = new SimpleAsr();
+        asr.recordSessions = false;
+        if (args.length > 2) {
+            asr.wakeWords = new HashSet<>(Arrays.asList(args[2].split(",")));
+        }
+        asr.decoder.mParallelism = 1; // 并发来自多路音频流，单句话不再拆分到多个线程
+        asr.init(model);
+        int cores = Runtime.getRuntime().availableProcessors();
+        try (AsrServer server = new AsrServer(asr, new InetSocketAddress(port), Math.max(1, cores / 4), cores)) {
+            server.start();
+            AsrLog.info("识别服务已启动，端口：" + server.port());
+            server.awaitTermination();
+        }
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    public int port() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return 当前连接的音频流数
+     */
+    public int activeStreams() {
+        return activeStreams.get();
+    }
+
+    void awaitTermination() {
+        try {
+            for (EventLoop loop : loops) {
+                loop.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdownNow();
+        serverChannel.close();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while (null != (channel = serverChannel.accept())) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+            SocketChannel accepted = channel;
+            loop.execute(() -> {
+                Connection connection = new Connection(loop, accepted);
+                connection.key = accepted.register(loop.selector, SelectionKey.OP_READ, connection);
+                activeStreams.incrementAndGet();
+            });
+        }
+    }
+
+    private interface LoopTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * 事件循环：负责一部分连接的读写，其他线程通过 execute 把操作交给它执行
+     */
+    private class EventLoop extends Thread {
+        final Selector selector;
+        private final Queue<LoopTask> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("asr-loop-" + index);
+            selector = Selector.open();
+        }
+
+        void execute(LoopTask task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    if (running) {
+                        AsrLog.warning("事件循环异常：" + e);
+                    }
+                    continue;
+                }
+                LoopTask task;
+                while (null != (task = tasks.poll())) {
+                    try {
+                        task.run();
+                    } catch (IOException | RuntimeException e) {
+                        AsrLog.warning("事件循环任务异常：" + e);
+                    }
+                }
+                // 每个连接的异常只关闭该连接，不影响同一事件循环上的其他连接
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Object attachment = key.attachment();
+                    try {
+                        if (attachment == AsrServer.this) {
+                            accept();
+                        } else {
+                            ((Connection) attachment).handle(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        if (attachment instanceof Connection) {
+                            ((Connection) attachment).abort(e);
+                        } else if (running) {
+                            AsrLog.warning("接受连接异常：" + e);
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    key.channel().close();
+                }
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 一路音频流：在事件循环线程上收发和分帧，在工作线程上串行地做 VAD、特征提取和解码
+     */
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+
+        // 以下字段只由事件循环线程访问
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private int payloadRemaining = 0;
+        private byte payloadType;
+        private int pendingLowByte = -1; // 跨消息或跨读取被拆开的采样的低字节
+        private short[] frame = new short[FRAME_SAMPLES];
+        private int frameFill = 0;
+        private final Queue<ByteBuffer> writes = new ArrayDeque<>();
+        private boolean paused = false;
+        private boolean closing = false; // 等待剩余的回复发送完毕后关闭
+
+        // 事件循环与工作线程之间的交接
+        private final Queue<short[]> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean ended = false;
+
+        // 以下字段只由工作线程访问（同一时刻最多一个）
+        private final AsrStream stream = new AsrStream(asr);
+        private boolean closed = false;
+
+        Connection(EventLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            try {
+                if (key.isValid() && key.isWritable()) {
+                    flush();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    read();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                ended = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                schedule();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !ended) {
+                if (payloadRemaining == 0) {
+                    while (header.hasRemaining() && readBuffer.hasRemaining()) {
+                        header.put(readBuffer.get());
+                    }
+                    if (header.hasRemaining()) {
+                        break;
+                    }
+                    header.flip();
+                    payloadType = header.get();
+                    payloadRemaining = header.getInt();
+                    header.clear();
+                    if (payloadRemaining < 0) {
+                        throw new IOException("非法的消息长度：" + payloadRemaining);
+                    }
+                    if (payloadType == TYPE_END) {
+                        ended = true;
+                        schedule();
+                    }
+                    continue;
+                }
+                int take = Math.min(payloadRemaining, readBuffer.remaining());
+                if (payloadType == TYPE_AUDIO) {
+                    readSamples(take);
+                } else {
+                    readBuffer.position(readBuffer.position() + take);
+                }
+                payloadRemaining -= take;
+            }
+            readBuffer.compact();
+            if (pendingCount.get() >= maxPendingFrames && !paused) {
+                // 背压：积压过多时暂停读取，由工作线程消化后恢复
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void readSamples(int bytes) {
+            for (int i = 0; i < bytes; i++) {
+                int b = readBuffer.get() & 0xff;
+                if (pendingLowByte < 0) {
+                    pendingLowByte = b;
+                    continue;
+                }
+                frame[frameFill++] = (short) (pendingLowByte | (b << 8));
+                pendingLowByte = -1;
+                if (frameFill == FRAME_SAMPLES) {
+                    pending.offer(frame);
+                    pendingCount.incrementAndGet();
+                    frame = new short[FRAME_SAMPLES];
+                    frameFill = 0;
+                    schedule();
+                }
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                workers.execute(this::process);
+            }
+        }
+
+        /**
+         * 在工作线程上处理积压的帧
+         */
+        private void process() {
+            try {
+                short[] signals;
+                while (null != (signals = pending.poll())) {
+                    int left = pendingCount.decrementAndGet();
+                    if (!closed && !channel.isOpen()) {
+                        // 事件循环已因异常关闭了连接
+                        closed = true;
+                        closeSession();
+                    }
+                    if (closed) {
+                        continue;
+                    }
+                    SimpleAsr.AsrSession finished = stream.accept(signals);
+                    for (KeywordSpotter.Detection detection : stream.takeDetections()) {
+                        send(TYPE_WAKE, detection.word + "\t" + detection.startMs + "\t" + detection.endMs);
+                    }
+                    SimpleAsr.AsrSession current = stream.currentSession();
+                    if (null != current) {
+                        String early = current.takeEarlyResult();
+                        if (null != early) {
+                            send(TYPE_EARLY_RESULT, early);
+                        }
+                    }
+                    if (null != finished) {
+                        String ret = finished.detect();
+                        send(TYPE_RESULT, null == ret ? "" : ret);
+                    }
+                    if (left == maxPendingFrames / 2) {
+                        execute(this::resume);
+                    }
+                }
+                if (ended && !closed) {
+                    // 音频流结束时仍在说话，直接对已收到的部分解码
+                    SimpleAsr.AsrSession current = stream.currentSession();
+                    if (null != current) {
+                        String ret = current.detect();
+                        send(TYPE_RESULT, null == ret ? "" : ret);
+                    }
+                    closed = true;
+                    execute(this::finish);
+                }
+            } catch (IOException | RuntimeException e) {
+                AsrLog.warning("音频流处理异常，关闭连接：" + e);
+                closed = true;
+                closeSession();
+                execute(this::close);
+            } finally {
+                scheduled.set(false);
+                if (!pending.isEmpty() || (ended && !closed)) {
+                    schedule();
+                }
+            }
+        }
+
+        /**
+         * 结束正在说话的这句话，只由工作线程调用
+         */
+        private void closeSession() {
+            SimpleAsr.AsrSession current = stream.currentSession();
+            if (null != current) {
+                current.close();
+            }
+        }
+
+        /**
+         * 在事件循环线程上执行这个连接的操作，出现异常时只关闭这个连接
+         */
+        private void execute(LoopTask task) {
+            loop.execute(() -> {
+                try {
+                    task.run();
+                } catch (IOException | RuntimeException e) {
+                    abort(e);
+                }
+            });
+        }
+
+        private void send(byte type, String text) {
+            byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+            message.put(type).putInt(payload.length).put(payload);
+            message.flip();
+            execute(() -> {
+                writes.offer(message);
+                flush();
+            });
+        }
+
+        private void flush() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            while (!writes.isEmpty()) {
+                ByteBuffer message = writes.peek();
+                channel.write(message);
+                if (message.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writes.poll();
+            }
+            if (closing) {
+                close();
+            } else if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void resume() {
+            if (paused && key.isValid()) {
+                paused = false;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * 发送完剩余的回复后关闭连接
+         */
+        private void finish() throws IOException {
+            closing = true;
+            flush();
+        }
+
+        private void close() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            channel.close();
+            activeStreams.decrementAndGet();
+        }
+
+        /**
+         * 处理这个连接时出现了意外的异常，记录后关闭连接
+         */
+        private void abort(Exception e) {
+            AsrLog.warning("连接异常，已关闭：" + e);
+            try {
+                close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
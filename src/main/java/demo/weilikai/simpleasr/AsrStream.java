@@ -0,0 +1,128 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * 一路音频流的端点检测：用 VAD 把连续的音频帧切分成句子，每句话对应一个 AsrSession
+ * <p>
+ * 每帧音频只提取一次 MFCC，同一份特征依次供 KeywordSpotter、VAD 和识别会话使用。
+ * 配置了唤醒词时，每一帧特征都送入 KeywordSpotter，与 VAD 的状态无关。
+ */
+class AsrStream {
+
+    static final int PREROLL_FRAMES = 25; // 说话开始前保留的 MFCC 帧数（约 250ms），避免切掉开头
+    static final int PREROLL_CHUNKS = 10; // 说话开始前保留的音频帧数，只用于会话录音
+
+    private final SimpleAsr asr;
+    private final SimpleVad vad = new SimpleVad();
+    // 随音频到达逐帧提取 MFCC，缓存只需容纳一帧加上一次送入的数据
+    private final MFCC mfcc = new MFCC(MFCC.FRAME_SIZE * 8);
+    private final Queue<short[]> queues = new LinkedList<>(); // 说话开始前的若干帧音频
+    private final Queue<double[]> featureQueue = new LinkedList<>(); // 说话开始前的若干帧特征
+    private SimpleAsr.AsrSession asrSession = null;
+    private final KeywordSpotter spotter;
+    private List<KeywordSpotter.Detection> detections = Collections.emptyList(); // 尚未取走的唤醒词检出
+    private final AsrMetrics metrics = AsrMetrics.get();
+
+    AsrStream(SimpleAsr asr) {
+        this.asr = asr;
+        this.spotter = asr.spotter();
+    }
+
+    /**
+     * 取走已检出的唤醒词
+     *
+     * @return 自上次调用以来检出的唤醒词，没有时为空
+     */
+    List<KeywordSpotter.Detection> takeDetections() {
+        List<KeywordSpotter.Detection> ret = detections;
+        detections = Collections.emptyList();
+        return ret;
+    }
+
+    /**
+     * @return 正在说话的这句话的会话，没有时返回 null
+     */
+    SimpleAsr.AsrSession currentSession() {
+        return asrSession;
+    }
+
+    /**
+     * 送入一帧音频
+     *
+     * @param signals 一帧 25ms 的音频
+     * @return 这一帧使一句话结束时，返回该句话的会话，等待调用 detect()；否则返回 null
+     * @throws IOException 会话录音写入异常
+     */
+    SimpleAsr.AsrSession accept(short[] signals) throws IOException {
+        SimpleAsr.AsrSession finished = null;
+        long start = System.nanoTime();
+        List<double[]> features = mfcc.mfccWithStride(signals, 10);
+        metrics.mfcc.recordSince(start);
+        for (double[] feature : features) {
+            if (null != spotter) {
+                KeywordSpotter.Detection detection = spotter.advance(feature);
+                if (null != detection) {
+                    if (detections.isEmpty()) {
+                        detections = new ArrayList<>();
+                    }
+                    detections.add(detection);
+                }
+            }
+            start = System.nanoTime();
+            int vadState = vad.detectVoiceActivityFSM(feature);
+            metrics.vad.recordSince(start);
+            switch (vadState) {
+                case 0:
+                    featureQueue.offer(feature);
+                    while (featureQueue.size() > PREROLL_FRAMES) {
+                        featureQueue.poll();
+                    }
+                    break;
+                case 1:
+                    if (null == asrSession) {
+                        asrSession = asr.session();
+
+                        while (queues.size() > 0) {
+                            asrSession.record(queues.poll());
+                        }
+                        while (featureQueue.size() > 0) {
+                            asrSession.feed(featureQueue.poll());
+                        }
+                    }
+                    asrSession.feed(feature);
+                    int silence = vad.silenceFrames();
+                    if (0 == silence) {
+                        // 又开始说话，之前的停顿不是句尾
+                        asrSession.resume();
+                    } else if (asr.decodeSilenceFrames == silence) {
+                        // 离线解码只保留这么多帧结尾静音，此时已经可以开始解码
+                        asrSession.pause();
+                    }
+                    break;
+                case 2:
+                    finished = asrSession;
+                    asrSession = null;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (null != asrSession) {
+            asrSession.record(signals);
+        } else {
+            queues.offer(signals);
+            while (queues.size() > PREROLL_CHUNKS) {
+                queues.poll();
+            }
+        }
+        return finished;
+    }
+}
@@ -0,0 +1,323 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台录音：调用方只把音频帧放进队列，由单独的写线程攒成大块后用 FileChannel 写入文件
+ * <p>
+ * 队列满时 write 立即丢弃这一帧并计数，识别线程永远不会因为磁盘而阻塞。每个打开的录音在写线程上有一个直接缓冲区，
+ * 攒满 BUFFER_BYTES 或录音关闭时才写一次文件。单个文件超过设定的字节数或时长后切换到新文件（name_1、name_2 ……），
+ * 可选地写入 WAV 文件头，关闭或切换文件时回填长度。
+ */
+final class AudioRecorder implements Closeable {
+
+    static final int BUFFER_BYTES = 64 * 1024; // 每个录音的直接缓冲区大小，约 2 秒音频
+    static final int DEFAULT_QUEUE_CAPACITY = 1024; // 默认队列容量（帧），每帧 25ms 时约 25 秒音频
+    private static final long IDLE_POLL_MS = 100; // 队列空闲时检查已关闭录音的间隔
+
+    private final File dir;
+    private final boolean wav;
+    private final long maxBytes; // 单个文件的最大音频字节数，0 表示不限
+    private final long maxMillis; // 单个文件的最长音频时长（毫秒），0 表示不限
+    private final BlockingQueue<Chunk> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    // 以下只由写线程访问
+    private final List<Recording> open = new ArrayList<>();
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>(); // 已关闭录音归还的直接缓冲区
+
+    /**
+     * @param dir       录音文件所在的目录，不存在时创建
+     * @param wav       是否写入 WAV 文件头，否则为 16 位小端的裸 pcm
+     * @param maxBytes  单个文件的最大音频字节数，超过后切换到新文件，0 表示不限
+     * @param maxMillis 单个文件的最长音频时长（毫秒），超过后切换到新文件，0 表示不限
+     */
+    AudioRecorder(File dir, boolean wav, long maxBytes, long maxMillis) {
+        this(dir, wav, maxBytes, maxMillis, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param queueCapacity 等待写入的帧数上限
+     */
+    AudioRecorder(File dir, boolean wav, long maxBytes, long maxMillis, int queueCapacity) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("无法创建录音目录：" + dir);
+        }
+        this.dir = dir;
+        this.wav = wav;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        writer = new Thread(this::drain, "asr-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 开始一段录音，文件在写线程收到第一帧时才创建
+     *
+     * @param name 文件名，不含扩展名
+     * @return 录音
+     */
+    Recording open(String name) {
+        return new Recording(name);
+    }
+
+    /**
+     * @return 因队列已满而丢弃的帧数
+     */
+    long dropped() {
+        return dropped.get();
+    }
+
+    /**
+     * 写完队列中已有的帧，关闭所有录音文件并停止写线程
+     */
+    @Override
+    public void close() throws IOException {
+        // 不中断写线程，FileChannel 在写入时被中断会关闭文件
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 一段录音，可以在任意线程写入，但同一段录音的帧应当由同一个线程按顺序写入
+     */
+    final class Recording {
+        private final String name;
+        private volatile boolean closed = false;
+
+        // 以下只由写线程访问
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long bytes; // 当前文件已写入的音频字节数
+        private int part; // 当前文件的序号，0 表示第一个文件
+        private boolean failed;
+        private boolean finished;
+
+        private Recording(String name) {
+            this.name = name;
+        }
+
+        /**
+         * 写入一帧音频，不阻塞；写入后调用方不应再修改 signals
+         *
+         * @param signals 音频采样
+         */
+        void write(short[] signals) {
+            if (closed || !queue.offer(new Chunk(this, signals))) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        /**
+         * 结束录音，之前写入的帧仍会被写完
+         */
+        void close() {
+            closed = true;
+            // 队列满时这条通知会丢失，写线程在队列空闲时也会检查 closed 标记
+            queue.offer(new Chunk(this, null));
+        }
+    }
+
+    private static final class Chunk {
+        final Recording recording;
+        final short[] signals; // null 表示关闭录音
+
+        Chunk(Recording recording, short[] signals) {
+            this.recording = recording;
+            this.signals = signals;
+        }
+    }
+
+    private void drain() {
+        while (running || !queue.isEmpty()) {
+            Chunk chunk;
+            try {
+                chunk = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                running = false;
+                continue;
+            }
+            if (null == chunk) {
+                // 队列为空，之前写入的帧都已处理，可以关闭被标记的录音
+                closeFinished();
+                continue;
+            }
+            Recording recording = chunk.recording;
+            if (null == chunk.signals) {
+                finish(recording);
+            } else if (recording.finished) {
+                // 关闭通知丢失后，写线程已经在空闲时关闭了该录音
+                dropped.incrementAndGet();
+            } else {
+                append(recording, chunk.signals);
+            }
+        }
+        for (Recording recording : new ArrayList<>(open)) {
+            finish(recording);
+        }
+    }
+
+    private void closeFinished() {
+        for (Recording recording : new ArrayList<>(open)) {
+            if (recording.closed) {
+                finish(recording);
+            }
+        }
+    }
+
+    private void append(Recording recording, short[] signals) {
+        if (recording.failed) {
+            return;
+        }
+        try {
+            if (null == recording.channel) {
+                openFile(recording);
+            }
+            int length = signals.length * 2;
+            if (rotate(recording, length)) {
+                finishFile(recording);
+                recording.part++;
+                openFile(recording);
+            }
+            ByteBuffer buffer = recording.buffer;
+            if (buffer.remaining() < length) {
+                flush(recording);
+            }
+            for (short signal : signals) {
+                buffer.putShort(signal);
+            }
+            recording.bytes += length;
+        } catch (IOException e) {
+            AsrLog.warning("录音写入失败，放弃该录音：" + recording.name + "，" + e.getMessage());
+            recording.failed = true;
+            release(recording);
+        }
+    }
+
+    /**
+     * 当前文件再写入 length 字节后是否超过大小或时长上限
+     */
+    private boolean rotate(Recording recording, int length) {
+        if (recording.bytes == 0) {
+            return false;
+        }
+        long bytes = recording.bytes + length;
+        long millis = bytes / 2 * 1000 / MFCC.SAMPLE_RATE;
+        return (maxBytes > 0 && bytes > maxBytes) || (maxMillis > 0 && millis > maxMillis);
+    }
+
+    private void openFile(Recording recording) throws IOException {
+        String suffix = recording.part == 0 ? "" : "_" + recording.part;
+        File file = new File(dir, recording.name + suffix + (wav ? ".wav" : ".pcm"));
+        recording.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        recording.bytes = 0;
+        if (null == recording.buffer) {
+            ByteBuffer buffer = buffers.poll();
+            recording.buffer = null != buffer ? buffer : ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            open.add(recording);
+        }
+        if (wav) {
+            // 先写入长度为 0 的文件头，关闭时回填
+            writeWavHeader(recording.buffer, 0);
+        }
+    }
+
+    private void flush(Recording recording) throws IOException {
+        ByteBuffer buffer = recording.buffer;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            recording.channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void finishFile(Recording recording) throws IOException {
+        flush(recording);
+        if (wav) {
+            ByteBuffer header = recording.buffer;
+            writeWavHeader(header, recording.bytes);
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += recording.channel.write(header, position);
+            }
+            header.clear();
+        }
+        recording.channel.close();
+        recording.channel = null;
+    }
+
+    private void finish(Recording recording) {
+        recording.finished = true;
+        if (null != recording.channel) {
+            try {
+                finishFile(recording);
+            } catch (IOException e) {
+                AsrLog.warning("录音写入失败：" + recording.name + "，" + e.getMessage());
+            }
+        }
+        release(recording);
+    }
+
+    private void release(Recording recording) {
+        if (null != recording.channel) {
+            try {
+                recording.channel.close();
+            } catch (IOException e) {
+                // 已经放弃该录音
+            }
+            recording.channel = null;
+        }
+        if (null != recording.buffer) {
+            recording.buffer.clear();
+            buffers.push(recording.buffer);
+            recording.buffer = null;
+        }
+        open.remove(recording);
+    }
+
+    /**
+     * 写入 16kHz、单声道、16 位的 WAV 文件头
+     *
+     * @param dataBytes 音频数据的字节数
+     */
+    private static void writeWavHeader(ByteBuffer buffer, long dataBytes) {
+        int byteRate = MFCC.SAMPLE_RATE * 2;
+        buffer.put(new byte[]{'R', 'I', 'F', 'F'});
+        buffer.putInt((int) (36 + dataBytes));
+        buffer.put(new byte[]{'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+        buffer.putInt(16); // fmt 块长度
+        buffer.putShort((short) 1); // PCM
+        buffer.putShort((short) 1); // 声道数
+        buffer.putInt(MFCC.SAMPLE_RATE);
+        buffer.putInt(byteRate);
+        buffer.putShort((short) 2); // 每个采样的字节数
+        buffer.putShort((short) 16); // 采样位数
+        buffer.put(new byte[]{'d', 'a', 't', 'a'});
+        buffer.putInt((int) dataBytes);
+    }
+}
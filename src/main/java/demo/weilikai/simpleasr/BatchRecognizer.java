@@ -0,0 +1,386 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 离线批量识别：把目录或清单中的录音按 25ms 一块送入与实时识别相同的 VAD → MFCC → SimpleDec 流程，多个文件并行处理
+ * <p>
+ * 用法：BatchRecognizer 录音目录或清单 [结果文件] [标注清单] [线程数] [模型]
+ * <ul>
+ * <li>录音目录下的 .pcm（16kHz、单声道、16 位小端，即会话录音的格式）、.wav 和 .merged 文件都会被识别，包括子目录；
+ * 清单每行一个文件路径，相对路径以清单所在目录为准，路径后可以用制表符隔开给出期望结果</li>
+ * <li>结果文件以 .csv 结尾时输出 CSV，否则输出 JSON lines，默认为 output/batch_result.jsonl；每个文件一行，顺序与输入一致</li>
+ * <li>标注清单每行为“文件名\t期望结果”，期望结果为 - 表示应当拒识；写成 @filename 时以文件名（去掉扩展名）作为期望结果，
+ * 与从录音目录构建模型时的词一致</li>
+ * <li>线程数默认为处理器个数，每个文件只在一个线程上解码</li>
+ * </ul>
+ * 结束时打印实时率（处理耗时 / 音频时长）、每个文件的处理耗时和说话结束到出结果的延迟分位数，以及有标注的文件的准确率。
+ */
+public class BatchRecognizer {
+
+    static final String DEFAULT_OUTPUT = "output/batch_result.jsonl";
+    static final String REJECT_LABEL = "-"; // 期望拒识的标注
+    static final String LABEL_FROM_FILE_NAME = "@filename";
+    private static final int CHUNK_SAMPLES = PcmInput.CHUNK_SAMPLES; // 与麦克风相同，每次送入 25ms
+    // 文件在说话中途结束时补入的静音块数，足够让 VAD 判定说话结束
+    private static final int TAIL_CHUNKS = SimpleVad.END_FRAMES * MFCC.FRAME_SHIFT / CHUNK_SAMPLES + 2;
+
+    private final SimpleAsr asr;
+
+    BatchRecognizer(SimpleAsr asr) {
+        this.asr = asr;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("用法：BatchRecognizer 录音目录或清单 [结果文件] [标注清单] [线程数] [模型]");
+            return;
+        }
+        File input = new File(args[0]);
+        File output = new File(args.length > 1 ? args[1] : DEFAULT_OUTPUT);
+        String labelManifest = args.length > 2 && !args[2].isEmpty() ? args[2] : null;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        File compiled = new File("assets/simple_asr/asr_model.bin");
+        String model = args.length > 4 ? args[4] : compiled.isFile() ? compiled.getPath() : "assets/simple_asr/asr_model";
+
+        SimpleAsr asr = new SimpleAsr();
+        asr.recordSessions = false;
+        asr.onlineDecoding = false; // 文件比实时快得多，逐帧推进 DTW 只会增加计算量
+        asr.speculate = false; // 各线程已经占满处理器，推测解码没有空闲的核可用
+        asr.decoder.mParallelism = 1; // 并行在文件之间，单个文件不再拆分
+        asr.init(model);
+
+        List<Item> items = input.isDirectory() ? scan(input) : readManifest(input);
+        if (null != labelManifest) {
+            applyLabels(items, labelManifest);
+        }
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("无法创建目录：" + parent);
+        }
+        System.out.println("待识别文件数：" + items.size() + "，线程数：" + threads);
+        new BatchRecognizer(asr).run(items, output, threads);
+    }
+
+    /**
+     * 一个待识别的录音文件
+     */
+    static final class Item {
+        final File file;
+        String label; // 期望结果，null 表示没有标注
+
+        Item(File file, String label) {
+            this.file = file;
+            this.label = label;
+        }
+    }
+
+    /**
+     * 一个文件的识别结果
+     */
+    static final class Result {
+        final Item item;
+        final List<String> results = new ArrayList<>(); // 每句话的识别结果，拒识为 null
+        final List<Long> decodeNanos = new ArrayList<>(); // 每句话从说话结束的那一块到出结果的耗时
+        long samples; // 音频采样点数
+        long elapsedNanos; // 整个文件的处理耗时
+        String error;
+
+        Result(Item item) {
+            this.item = item;
+        }
+
+        double audioMs() {
+            return samples * 1000.0 / MFCC.SAMPLE_RATE;
+        }
+
+        double elapsedMs() {
+            return elapsedNanos / 1e6;
+        }
+
+        /**
+         * @return 是否与标注一致：每句话都识别为期望结果；期望拒识时所有句子都被拒识，没有切分出句子也算拒识
+         */
+        boolean correct() {
+            if (null != error) {
+                return false;
+            }
+            if (REJECT_LABEL.equals(item.label)) {
+                return results.stream().allMatch(Objects::isNull);
+            }
+            return !results.isEmpty() && results.stream().allMatch(item.label::equals);
+        }
+
+        /**
+         * @return 识别结果与标注一致的句子数
+         */
+        long correctUtterances() {
+            String expected = REJECT_LABEL.equals(item.label) ? null : item.label;
+            return results.stream().filter(result -> Objects.equals(expected, result)).count();
+        }
+    }
+
+    /**
+     * 并行识别所有文件，按输入顺序写出结果并打印汇总
+     */
+    void run(List<Item> items, File output, int threads) throws IOException, InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "asr-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        List<Future<Result>> futures = new ArrayList<>(items.size());
+        for (Item item : items) {
+            futures.add(workers.submit(() -> recognize(item)));
+        }
+        List<Result> results = new ArrayList<>(items.size());
+        boolean csv = output.getName().endsWith(".csv");
+        try (Writer writer = Files.newBufferedWriter(output.toPath(), StandardCharsets.UTF_8)) {
+            if (csv) {
+                writer.write("file,audio_ms,elapsed_ms,rtf,decode_ms,results,label,correct,error\n");
+            }
+            for (Future<Result> future : futures) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("识别失败", e.getCause());
+                }
+                results.add(result);
+                writer.write(csv ? toCsv(result) : toJson(result));
+                writer.write('\n');
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        summarize(results, System.nanoTime() - start, threads);
+        System.out.println("结果已写入：" + output);
+    }
+
+    /**
+     * 识别一个文件，文件读取或识别失败时记录错误而不中断整批
+     */
+    Result recognize(Item item) {
+        Result result = new Result(item);
+        long start = System.nanoTime();
+        try (PcmInput in = PcmInput.open(item.file)) {
+            AsrStream stream = new AsrStream(asr);
+            short[] chunk;
+            while (null != (chunk = in.next())) {
+                accept(stream, chunk, result);
+            }
+            // 文件在说话中途结束时补入静音，让最后一句话也能结束
+            for (int i = 0; i < TAIL_CHUNKS && null != stream.currentSession(); i++) {
+                accept(stream, new short[CHUNK_SAMPLES], result);
+            }
+            result.samples = in.samples();
+        } catch (IOException e) {
+            result.error = e.getMessage();
+        } catch (RuntimeException e) {
+            // 单个文件识别出错（例如格式异常的音频）只记在该文件上
+            result.error = e.toString();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static void accept(AsrStream stream, short[] chunk, Result result) throws IOException {
+        long start = System.nanoTime();
+        SimpleAsr.AsrSession finished = stream.accept(chunk);
+        if (null != finished) {
+            result.results.add(finished.detect());
+            result.decodeNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private static void summarize(List<Result> results, long wallNanos, int threads) {
+        double audioMs = results.stream().mapToDouble(Result::audioMs).sum();
+        double[] elapsed = results.stream().mapToDouble(Result::elapsedMs).sorted().toArray();
+        double[] decode = results.stream().flatMap(r -> r.decodeNanos.stream()).mapToDouble(n -> n / 1e6).sorted().toArray();
+        long utterances = results.stream().mapToLong(r -> r.results.size()).sum();
+        long rejected = results.stream().flatMap(r -> r.results.stream()).filter(Objects::isNull).count();
+        long failed = results.stream().filter(r -> null != r.error).count();
+        List<Result> labeled = results.stream().filter(r -> null != r.item.label).collect(Collectors.toList());
+        long correct = labeled.stream().filter(Result::correct).count();
+        long labeledUtterances = labeled.stream().mapToLong(r -> r.results.size()).sum();
+        long correctUtterances = labeled.stream().mapToLong(Result::correctUtterances).sum();
+
+        System.out.printf("文件数：%d（失败 %d），句子数：%d（拒识 %d），音频总时长：%.1f 秒%n",
+                results.size(), failed, utterances, rejected, audioMs / 1000);
+        System.out.printf("墙钟耗时：%.1f 秒，实时率：%.4f（%d 线程合计 %.4f）%n", wallNanos / 1e9,
+                wallNanos / 1e6 / audioMs, threads, Arrays.stream(elapsed).sum() / audioMs);
+        System.out.printf("单文件耗时（毫秒）：p50 %.1f，p95 %.1f，p99 %.1f，最大 %.1f%n",
+                percentile(elapsed, 0.5), percentile(elapsed, 0.95), percentile(elapsed, 0.99), percentile(elapsed, 1));
+        System.out.printf("出结果延迟（毫秒）：p50 %.2f，p95 %.2f，p99 %.2f，最大 %.2f%n",
+                percentile(decode, 0.5), percentile(decode, 0.95), percentile(decode, 0.99), percentile(decode, 1));
+        if (!labeled.isEmpty()) {
+            System.out.printf("准确率：按文件 %.2f%%（%d / %d），按句子 %.2f%%（%d / %d）%n",
+                    correct * 100.0 / labeled.size(), correct, labeled.size(),
+                    correctUtterances * 100.0 / labeledUtterances, correctUtterances, labeledUtterances);
+        }
+    }
+
+    private static double percentile(double[] sorted, double p) {
+        if (sorted.length == 0) {
+            return Double.NaN;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * 递归列出目录下的录音文件，按路径排序
+     */
+    static List<Item> scan(File dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir.toPath())) {
+            return paths.filter(Files::isRegularFile)
+                    .filter(path -> path.toString().matches(".*\\.(pcm|wav|merged)$"))
+                    .sorted()
+                    .map(path -> new Item(path.toFile(), null))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * 读取文件清单：每行一个路径，可以用制表符隔开给出期望结果，空行和 # 开头的行被忽略
+     */
+    static List<Item> readManifest(File manifest) throws IOException {
+        List<Item> items = new ArrayList<>();
+        File base = manifest.getAbsoluteFile().getParentFile();
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\t", 2);
+            File file = new File(fields[0].trim());
+            if (!file.isAbsolute()) {
+                file = new File(base, fields[0].trim());
+            }
+            items.add(new Item(file, fields.length > 1 ? fields[1].trim() : null));
+        }
+        return items;
+    }
+
+    /**
+     * 按文件名给出期望结果，覆盖清单中已有的标注
+     */
+    static void applyLabels(List<Item> items, String labelManifest) throws IOException {
+        if (LABEL_FROM_FILE_NAME.equals(labelManifest)) {
+            for (Item item : items) {
+                item.label = item.file.getName().replaceAll("\\..*$", "");
+            }
+            return;
+        }
+        Map<String, String> labels = new HashMap<>();
+        for (String line : Files.readAllLines(new File(labelManifest).toPath(), StandardCharsets.UTF_8)) {
+            String[] fields = line.split("\t", 2);
+            if (fields.length == 2 && !line.startsWith("#")) {
+                labels.put(fields[0].trim(), fields[1].trim());
+            }
+        }
+        for (Item item : items) {
+            String label = labels.get(item.file.getName());
+            if (null != label) {
+                item.label = label;
+            }
+        }
+    }
+
+    private static String toJson(Result r) {
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"file\":").append(json(r.item.file.getPath()));
+        sb.append(",\"audio_ms\":").append(Math.round(r.audioMs()));
+        sb.append(",\"elapsed_ms\":").append(String.format(Locale.ROOT, "%.2f", r.elapsedMs()));
+        sb.append(",\"rtf\":").append(String.format(Locale.ROOT, "%.4f", rtf(r)));
+        sb.append(",\"decode_ms\":").append(r.decodeNanos.stream().map(n -> String.format(Locale.ROOT, "%.2f", n / 1e6))
+                .collect(Collectors.joining(",", "[", "]")));
+        sb.append(",\"results\":").append(r.results.stream().map(BatchRecognizer::json)
+                .collect(Collectors.joining(",", "[", "]")));
+        if (null != r.item.label) {
+            sb.append(",\"label\":").append(json(r.item.label));
+            sb.append(",\"correct\":").append(r.correct());
+        }
+        if (null != r.error) {
+            sb.append(",\"error\":").append(json(r.error));
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String toCsv(Result r) {
+        return String.join(",",
+                csv(r.item.file.getPath()),
+                String.valueOf(Math.round(r.audioMs())),
+                String.format(Locale.ROOT, "%.2f", r.elapsedMs()),
+                String.format(Locale.ROOT, "%.4f", rtf(r)),
+                csv(r.decodeNanos.stream().map(n -> String.format(Locale.ROOT, "%.2f", n / 1e6)).collect(Collectors.joining(" "))),
+                csv(r.results.stream().map(s -> null == s ? REJECT_LABEL : s).collect(Collectors.joining(" "))),
+                csv(null == r.item.label ? "" : r.item.label),
+                null == r.item.label ? "" : String.valueOf(r.correct()),
+                csv(null == r.error ? "" : r.error));
+    }
+
+    private static double rtf(Result r) {
+        return r.samples == 0 ? 0 : r.elapsedMs() / r.audioMs();
+    }
+
+    private static String json(String s) {
+        if (null == s) {
+            return "null";
+        }
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String csv(String s) {
+        if (s.contains(",") || s.contains("\"") || s.contains("\n")) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+}
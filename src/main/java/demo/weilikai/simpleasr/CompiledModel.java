@@ -0,0 +1,250 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+import demo.weilikai.simpleasr.util.Kernels;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 预编译的模板模型文件
+ * <p>
+ * 文件格式（小端序）：
+ * <pre>
+ * int    magic              "SASR"
+ * int    version
+ * int[5] 特征配置            采样率、帧长、帧移、滤波器数、MFCC维数
+ * int    字节数 + UTF-8 字节  切分配置，见 ModuleLoader.featureConfig()
+ * int    字节数 + UTF-8 字节  编译时使用的计算内核
+ * int    每个词参与打分的模板个数，0 表示对所有模板取平均（版本 4 起）
+ * int    词数，随后每个词：int 字节数 + UTF-8 字节
+ * int    模板数，随后每个模板：int 词编号 + int 帧数
+ * 按 8 字节对齐的 double 特征数据，所有模板依次首尾相连
+ * int    枢轴数，0 表示没有索引；随后 int[枢轴数] 枢轴模板编号
+ * int    字节数 + UTF-8 字节  建立索引时的 DTW 参数，见 Dtw.config()（版本 5 起）
+ * 按 8 字节对齐的 double[模板数 × 枢轴数] 模板到枢轴的距离，见 TemplateIndex
+ * </pre>
+ * 加载时只需一次 mmap，不再做任何 VAD 和 MFCC 计算，特征数据直接作为 TemplateStore 使用。
+ * 切分配置与当前程序不一致时拒绝加载，需要重新编译；版本 3 之前的文件没有记录切分配置，同样需要重新编译。
+ * 精简过的模型每个模板代表一类录音，只能按最近的模板打分，因此打分的模板个数随模型保存，加载时由 SimpleDec 采用。
+ * 版本 5 之前的索引没有记录 DTW 参数，无法判断是否与识别时一致，加载时丢弃。
+ */
+final class CompiledModel {
+
+    static final int MAGIC = 0x52534153; // "SASR"
+    static final int VERSION = 5;
+
+    final TemplateStore store;
+    final TemplateIndex index; // 可以为 null
+    final int topK; // 每个词参与打分的模板个数，0 表示对所有模板取平均
+
+    CompiledModel(TemplateStore store, TemplateIndex index, int topK) {
+        if (null != index && index.size() != store.size()) {
+            throw new IllegalArgumentException("索引的模板数与模型不一致：" + index.size() + " != " + store.size());
+        }
+        if (topK < 0) {
+            throw new IllegalArgumentException("打分的模板个数不能为负数：" + topK);
+        }
+        this.store = store;
+        this.index = index;
+        this.topK = topK;
+    }
+
+    /**
+     * 将模板写入模型文件
+     *
+     * @param file 输出的模型文件
+     * @throws IOException 文件写入异常
+     */
+    void write(File file) throws IOException {
+        int dim = MFCC.NUM_COEFFICIENTS;
+        if (store.dim() != dim) {
+            throw new IllegalArgumentException("特征维数必须是" + dim + "，实际为" + store.dim());
+        }
+        byte[] config = ModuleLoader.featureConfig().getBytes(StandardCharsets.UTF_8);
+        byte[] kernels = Kernels.get().name().getBytes(StandardCharsets.UTF_8);
+        List<byte[]> encodedWords = new ArrayList<>();
+        int headerSize = 4 * 8 + 4 + config.length + 4 + kernels.length + 4;
+        for (String word : store.words()) {
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            encodedWords.add(bytes);
+            headerSize += 4 + bytes.length;
+        }
+        headerSize += 4 + 8 * store.size();
+        int dataOffset = (headerSize + 7) & ~7;
+        long totalFrames = store.frameCount();
+        int[] pivots = null == index ? new int[0] : index.pivots();
+        double[] table = null == index ? new double[0] : index.table();
+        byte[] dtwConfig = (null == index ? "" : index.dtwConfig()).getBytes(StandardCharsets.UTF_8);
+        long indexOffset = dataOffset + totalFrames * dim * 8;
+        long tableOffset = (indexOffset + 4 + 4L * pivots.length + 4 + dtwConfig.length + 7) & ~7;
+
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(tableOffset + 8L * table.length)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION);
+        writeFeatureConfig(buffer);
+        buffer.putInt(config.length).put(config);
+        buffer.putInt(kernels.length).put(kernels);
+        buffer.putInt(topK);
+        buffer.putInt(store.words().size());
+        for (byte[] bytes : encodedWords) {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+        buffer.putInt(store.size());
+        for (int t = 0; t < store.size(); t++) {
+            buffer.putInt(store.wordId(t)).putInt(store.length(t));
+        }
+        buffer.position(dataOffset);
+        for (int t = 0; t < store.size(); t++) {
+            for (int i = 0; i < store.length(t); i++) {
+                for (int d = 0; d < dim; d++) {
+                    buffer.putDouble(store.get(t, i, d));
+                }
+            }
+        }
+        buffer.putInt(pivots.length);
+        for (int pivot : pivots) {
+            buffer.putInt(pivot);
+        }
+        buffer.putInt(dtwConfig.length).put(dtwConfig);
+        buffer.position(Math.toIntExact(tableOffset));
+        for (double distance : table) {
+            buffer.putDouble(distance);
+        }
+        buffer.flip();
+
+        // 先写临时文件再原子改名：正在运行的进程映射着旧文件，原地截断改写会让它读到被截掉的页面而崩溃
+        File parent = file.getAbsoluteFile().getParentFile();
+        Path temp = new File(parent, file.getName() + "." + System.nanoTime() + ".tmp").toPath();
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 通过内存映射加载模型文件
+     * <p>
+     * 返回的模板存储直接引用映射的内存，不复制特征数据；ModelCompiler 用原子改名替换模型文件，重新编译不影响已映射的旧文件。
+     *
+     * @param file 模型文件
+     * @return 模型
+     * @throws IOException 文件读取异常，或文件格式、版本、特征配置与当前程序不一致
+     */
+    static CompiledModel load(File file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 4 * 8 || buffer.getInt() != MAGIC) {
+            throw new IOException("不是有效的模型文件：" + file);
+        }
+        int version = buffer.getInt();
+        if (version < 3) {
+            throw new IOException("模型版本 " + version + " 没有记录 VAD 切分配置，请用 ModelCompiler 重新编译：" + file);
+        }
+        if (version > VERSION) {
+            throw new IOException("不支持的模型版本：" + version + "，当前版本：" + VERSION);
+        }
+        checkFeatureConfig(buffer);
+        if (!ModuleLoader.featureConfig().equals(readString(buffer))) {
+            throw new IOException("模型的 VAD 切分或特征配置与当前程序不一致，请用 ModelCompiler 重新编译：" + file);
+        }
+        String kernels = readString(buffer);
+        if (!kernels.equals(Kernels.get().name())) {
+            AsrLog.fine("模型编译时使用 " + kernels + " 内核，当前为 " + Kernels.get().name() + "，特征数值可能有细微差别");
+        }
+        int topK = version >= 4 ? buffer.getInt() : 0;
+        if (topK < 0) {
+            throw new IOException("模型文件已损坏，打分的模板个数不正确：" + topK);
+        }
+
+        int wordCount = buffer.getInt();
+        List<String> words = new ArrayList<>(wordCount);
+        for (int i = 0; i < wordCount; i++) {
+            words.add(readString(buffer));
+        }
+        int templateCount = buffer.getInt();
+        int[] wordIds = new int[templateCount];
+        int[] frameCounts = new int[templateCount];
+        for (int i = 0; i < templateCount; i++) {
+            wordIds[i] = buffer.getInt();
+            frameCounts[i] = buffer.getInt();
+            if (wordIds[i] < 0 || wordIds[i] >= wordCount) {
+                throw new IOException("模板词编号越界：" + wordIds[i]);
+            }
+        }
+
+        buffer.position((buffer.position() + 7) & ~7);
+        try {
+            TemplateStore store = TemplateStore.wrap(words, wordIds, frameCounts, MFCC.NUM_COEFFICIENTS, buffer.slice());
+            TemplateIndex index = null;
+            buffer.position(Math.toIntExact(buffer.position() + store.valueBytes()));
+            int[] pivots = new int[buffer.getInt()];
+            for (int p = 0; p < pivots.length; p++) {
+                pivots[p] = buffer.getInt();
+                if (pivots[p] < 0 || pivots[p] >= templateCount) {
+                    throw new IOException("枢轴模板编号越界：" + pivots[p]);
+                }
+            }
+            String dtwConfig = version >= 5 ? readString(buffer) : null;
+            buffer.position((buffer.position() + 7) & ~7);
+            if (pivots.length > 0 && null == dtwConfig) {
+                AsrLog.warning("模型版本 " + version + " 的近邻索引没有记录 DTW 参数，已忽略，请用 ModelCompiler 重新编译：" + file);
+            } else if (pivots.length > 0) {
+                double[] table = new double[templateCount * pivots.length];
+                buffer.asDoubleBuffer().get(table);
+                index = new TemplateIndex(dtwConfig, pivots, table);
+            }
+            return new CompiledModel(store, index, topK);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("模型文件已损坏：" + file, e);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IOException("模型文件已损坏，字符串长度不正确：" + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeFeatureConfig(ByteBuffer buffer) {
+        buffer.putInt(MFCC.SAMPLE_RATE)
+                .putInt(MFCC.FRAME_SIZE)
+                .putInt(MFCC.FRAME_SHIFT)
+                .putInt(MFCC.NUM_FILTERS)
+                .putInt(MFCC.NUM_COEFFICIENTS);
+    }
+
+    private static void checkFeatureConfig(ByteBuffer buffer) throws IOException {
+        int[] expected = {MFCC.SAMPLE_RATE, MFCC.FRAME_SIZE, MFCC.FRAME_SHIFT, MFCC.NUM_FILTERS, MFCC.NUM_COEFFICIENTS};
+        for (int value : expected) {
+            int actual = buffer.getInt();
+            if (actual != value) {
+                throw new IOException("模型特征配置与当前前端不一致，请重新编译模型");
+            }
+        }
+    }
+}
@@ -0,0 +1,586 @@
+package demo.weilikai.simpleasr;
+
+import java.util.Arrays;
+
+/**
+ * 动态时间规整（DTW）距离计算
+ * <p>
+ * 支持 Sakoe-Chiba 和 Itakura 全局路径约束，计算时只保留两行滚动数组，
+ * 并且在某一行的最小累计距离超过给定上界时提前放弃。帧间距离由 LocalDistance 按块计算。
+ * <p>
+ * 可选的多分辨率（FastDTW）模式先在逐级减半的序列上求出粗粒度路径，每一级只在上一级路径投影出的窗口内细化，
+ * 计算量与序列长度近似成线性，代价是结果可能略大于精确距离。
+ */
+final class Dtw {
+
+    /**
+     * 全局路径约束
+     */
+    enum Constraint {
+        /**
+         * 不做约束，计算整个矩阵
+         */
+        NONE,
+        /**
+         * 以对角线为中心、固定半径的带状区域
+         */
+        SAKOE_CHIBA,
+        /**
+         * 斜率限制在 1/2 到 2 之间的平行四边形区域
+         */
+        ITAKURA
+    }
+
+    static final int BLOCK_ROWS = 4; // 一次计算局部距离的输入帧数
+
+    private final Constraint constraint;
+    private final double radius;
+    private final LocalDistance localDistance;
+    private final int fastRadius; // 多分辨率模式下路径投影后向四周扩展的帧数，小于 0 表示精确计算
+
+    /**
+     * @param constraint 全局路径约束
+     * @param radius     Sakoe-Chiba 带宽半径，占模板长度的比例，仅在 SAKOE_CHIBA 时有效
+     */
+    Dtw(Constraint constraint, double radius) {
+        this(constraint, radius, LocalDistance.Metric.EUCLIDEAN);
+    }
+
+    /**
+     * @param constraint 全局路径约束
+     * @param radius     Sakoe-Chiba 带宽半径，占模板长度的比例，仅在 SAKOE_CHIBA 时有效
+     * @param metric     帧间距离的度量
+     */
+    Dtw(Constraint constraint, double radius, LocalDistance.Metric metric) {
+        this(constraint, radius, metric, -1);
+    }
+
+    /**
+     * @param constraint 全局路径约束
+     * @param radius     Sakoe-Chiba 带宽半径，占模板长度的比例，仅在 SAKOE_CHIBA 时有效
+     * @param metric     帧间距离的度量
+     * @param fastRadius 多分辨率（FastDTW）模式下粗粒度路径投影后向四周扩展的帧数，小于 0 表示使用精确DTW
+     */
+    Dtw(Constraint constraint, double radius, LocalDistance.Metric metric, int fastRadius) {
+        if (radius < 0) {
+            throw new IllegalArgumentException("radius 不能为负数");
+        }
+        this.constraint = constraint;
+        this.radius = radius;
+        this.localDistance = new LocalDistance(metric);
+        this.fastRadius = fastRadius;
+    }
+
+    /**
+     * 使用相同的约束和度量、但在多分辨率模式下计算的DTW
+     *
+     * @param fastRadius 粗粒度路径投影后向四周扩展的帧数，小于 0 表示使用精确DTW
+     */
+    Dtw withFastRadius(int fastRadius) {
+        return new Dtw(constraint, radius, localDistance.metric(), fastRadius);
+    }
+
+    Constraint constraint() {
+        return constraint;
+    }
+
+    /**
+     * 是否使用多分辨率模式
+     */
+    boolean isFast() {
+        return fastRadius >= 0;
+    }
+
+    int fastRadius() {
+        return fastRadius;
+    }
+
+    LocalDistance localDistance() {
+        return localDistance;
+    }
+
+    /**
+     * @return 决定距离数值的全部参数，参数相同的两个 DTW 对同一对序列算出的距离相同
+     */
+    String config() {
+        return constraint + ";radius=" + radius + ";metric=" + localDistance.metric() + ";fast=" + fastRadius;
+    }
+
+    /**
+     * 计算 Sakoe-Chiba 约束下的带宽半径（以模板帧为单位）
+     * <p>
+     * 半径至少为对角线斜率的一半，保证相邻两行的可行区间首尾相接，路径总能到达终点。
+     *
+     * @param inputLength    输入序列长度
+     * @param templateLength 模板序列长度
+     * @return 带宽半径
+     */
+    int bandRadius(int inputLength, int templateLength) {
+        if (inputLength <= 1) {
+            return templateLength;
+        }
+        double slope = (double) (templateLength - 1) / (inputLength - 1);
+        return (int) Math.max(Math.ceil(radius * templateLength), Math.ceil(slope / 2));
+    }
+
+    /**
+     * 计算输入序列第 i 帧对应的模板帧可行区间 [lo, hi]
+     */
+    private void window(int i, int n, int m, int[] range) {
+        int lo = 0;
+        int hi = m - 1;
+        if (n > 1) {
+            double slope = (double) (m - 1) / (n - 1);
+            switch (constraint) {
+                case SAKOE_CHIBA: {
+                    int center = (int) Math.round(i * slope);
+                    int r = bandRadius(n, m);
+                    lo = Math.max(0, center - r);
+                    hi = Math.min(m - 1, center + r);
+                    break;
+                }
+                case ITAKURA: {
+                    double lower = Math.max(i * slope / 2, (m - 1) - 2 * (n - 1 - i) * slope);
+                    double upper = Math.min(2 * i * slope, (m - 1) - (n - 1 - i) * slope / 2);
+                    lo = Math.max(0, (int) Math.ceil(lower));
+                    hi = Math.min(m - 1, (int) Math.floor(upper));
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        range[0] = lo;
+        range[1] = Math.max(lo, hi);
+    }
+
+    /**
+     * 计算输入序列与模板序列之间的DTW距离
+     * <p>
+     * 精确模式下在全局路径约束内计算；多分辨率模式下只在由粗粒度路径投影出的窗口（与全局约束的交集）内计算，
+     * 结果不小于同一约束下的精确距离。
+     *
+     * @param input        输入的MFCC序列
+     * @param template     模板的MFCC序列
+     * @param abandonAbove 上界，某一行的最小累计距离超过该值时提前放弃，传入 Double.POSITIVE_INFINITY 表示不放弃
+     * @return 两个序列之间的DTW距离；若返回值大于 abandonAbove，表示已提前放弃，该值只是真实距离的下界
+     */
+    double distance(LocalDistance.Sequence input, LocalDistance.Sequence template, double abandonAbove) {
+        int n = input.length;
+        int m = template.length;
+        int[] los = new int[n];
+        int[] his = new int[n];
+        if (fastRadius < 0) {
+            constraintWindows(n, m, los, his);
+        } else {
+            fastWindows(input, template, los, his);
+        }
+        return distance(input, template, los, his, abandonAbove);
+    }
+
+    /**
+     * 在给定的逐行可行区间内计算DTW距离
+     * <p>
+     * 每 BLOCK_ROWS 行输入帧一起计算它们可行区间并集内的整块局部距离，再逐行做动态规划。
+     *
+     * @param los 每一行可行区间的起点，第一行必须从 0 开始，且相邻两行的区间首尾相接
+     * @param his 每一行可行区间的终点，最后一行必须到达模板最后一帧
+     */
+    private double distance(LocalDistance.Sequence input, LocalDistance.Sequence template,
+                            int[] los, int[] his, double abandonAbove) {
+        int n = input.length;
+        int m = template.length;
+        // 累计距离向右错开一格存放，第 j 个模板帧位于下标 j + 1，可行区间外（包括下标 0）恒为无穷大，转移时不必判断边界
+        double[] prev = new double[m + 1];
+        double[] curr = new double[m + 1];
+        Arrays.fill(prev, Double.POSITIVE_INFINITY);
+        Arrays.fill(curr, Double.POSITIVE_INFINITY);
+        double[][] costs = new double[BLOCK_ROWS][m];
+        int prevLo = 0;
+        int prevHi = -1;
+        int currLo = 0; // curr 中残留的两行之前的可行区间
+        int currHi = -1;
+
+        for (int ib = 0; ib < n; ib += BLOCK_ROWS) {
+            int ie = Math.min(n, ib + BLOCK_ROWS);
+            int blockLo = m;
+            int blockHi = -1;
+            for (int i = ib; i < ie; i++) {
+                blockLo = Math.min(blockLo, los[i]);
+                blockHi = Math.max(blockHi, his[i]);
+            }
+            localDistance.tile(input, ib, ie, template, blockLo, blockHi + 1, costs);
+
+            for (int i = ib; i < ie; i++) {
+                int lo = los[i];
+                int hi = his[i];
+                double[] cost = costs[i - ib];
+                // 清除残留在新区间之外的旧值
+                for (int j = currLo; j <= currHi; j++) {
+                    if (j < lo || j > hi) {
+                        curr[j + 1] = Double.POSITIVE_INFINITY;
+                    }
+                }
+                double rowMin = Double.POSITIVE_INFINITY;
+                if (i == 0) {
+                    // 第一行只能从左边转移过来
+                    curr[1] = cost[0];
+                    for (int j = 1; j <= hi; j++) {
+                        curr[j + 1] = curr[j] + cost[j];
+                    }
+                    rowMin = curr[1];
+                } else {
+                    for (int j = lo; j <= hi; j++) {
+                        // 当前单元格的值等于当前距离加上左上、上和左单元格中的最小值
+                        double best = Math.min(Math.min(prev[j + 1], prev[j]), curr[j]);
+                        double value = cost[j] + best;
+                        curr[j + 1] = value;
+                        rowMin = Math.min(rowMin, value);
+                    }
+                }
+                if (rowMin > abandonAbove) {
+                    return rowMin;
+                }
+                double[] t = prev;
+                prev = curr;
+                curr = t;
+                currLo = prevLo;
+                currHi = prevHi;
+                prevLo = lo;
+                prevHi = hi;
+            }
+        }
+
+        // 最后一行的最后一个元素即为两个序列之间的DTW距离
+        return prev[m];
+    }
+
+    /**
+     * 求两个序列之间的最优对齐路径，可行区间与 distance 相同
+     * <p>
+     * 路径在 x 的每一帧上对齐到 y 中连续的一段帧，因此只需输出每一帧对应的起止帧。
+     *
+     * @param los 输出，x 第 i 帧对齐到的 y 的第一帧，长度不小于 x 的帧数
+     * @param his 输出，x 第 i 帧对齐到的 y 的最后一帧，长度不小于 x 的帧数
+     */
+    void align(LocalDistance.Sequence x, LocalDistance.Sequence y, int[] los, int[] his) {
+        int[] pathLos = new int[x.length];
+        int[] pathHis = new int[x.length];
+        if (fastRadius < 0) {
+            constraintWindows(x.length, y.length, pathLos, pathHis);
+        } else {
+            fastWindows(x, y, pathLos, pathHis);
+        }
+        path(x, y, pathLos, pathHis);
+        System.arraycopy(pathLos, 0, los, 0, x.length);
+        System.arraycopy(pathHis, 0, his, 0, x.length);
+    }
+
+    /**
+     * 计算全局路径约束下每一行的可行区间
+     */
+    private void constraintWindows(int n, int m, int[] los, int[] his) {
+        int[] range = new int[2];
+        for (int i = 0; i < n; i++) {
+            window(i, n, m, range);
+            los[i] = range[0];
+            his[i] = range[1];
+        }
+        connect(los, his);
+    }
+
+    /**
+     * 保证每一行与上一行的可行区间相接，否则路径无法延续
+     */
+    private static void connect(int[] los, int[] his) {
+        for (int i = 1; i < los.length; i++) {
+            los[i] = Math.min(los[i], his[i - 1] + 1);
+            his[i] = Math.max(his[i], los[i - 1]);
+        }
+    }
+
+    /**
+     * 多分辨率（FastDTW）模式下每一行的可行区间
+     * <p>
+     * 把两个序列都按相邻两帧取平均缩短一半，递归求出粗粒度的最优路径，
+     * 再把路径投影回当前分辨率并向四周扩展 fastRadius 帧作为窗口，最后与全局路径约束取交集。
+     * 序列足够短时直接使用全局路径约束。
+     */
+    private void fastWindows(LocalDistance.Sequence x, LocalDistance.Sequence y, int[] los, int[] his) {
+        int n = x.length;
+        int m = y.length;
+        if (n <= fastRadius + 2 || m <= fastRadius + 2) {
+            constraintWindows(n, m, los, his);
+            return;
+        }
+        LocalDistance.Sequence coarseX = x.downsample();
+        LocalDistance.Sequence coarseY = y.downsample();
+        int[] pathLos = new int[coarseX.length];
+        int[] pathHis = new int[coarseX.length];
+        fastWindows(coarseX, coarseY, pathLos, pathHis);
+        path(coarseX, coarseY, pathLos, pathHis);
+
+        // 粗粒度的第 c 行对应当前的第 2c、2c + 1 行，第 j 列对应第 2j、2j + 1 列
+        int[] range = new int[2];
+        for (int i = 0; i < n; i++) {
+            int lo = m;
+            int hi = -1;
+            for (int k = Math.max(0, i - fastRadius); k <= Math.min(n - 1, i + fastRadius); k++) {
+                lo = Math.min(lo, 2 * pathLos[k / 2]);
+                hi = Math.max(hi, 2 * pathHis[k / 2] + 1);
+            }
+            lo = Math.max(0, lo - fastRadius);
+            hi = Math.min(m - 1, hi + fastRadius);
+            window(i, n, m, range);
+            if (Math.max(lo, range[0]) <= Math.min(hi, range[1])) {
+                lo = Math.max(lo, range[0]);
+                hi = Math.min(hi, range[1]);
+            } else {
+                // 窗口完全落在约束之外时退回约束区间
+                lo = range[0];
+                hi = range[1];
+            }
+            los[i] = lo;
+            his[i] = hi;
+        }
+        connect(los, his);
+    }
+
+    /**
+     * 在给定的逐行可行区间内求最优路径，保存整个窗口内的累计距离后回溯
+     *
+     * @param los 输入为每一行的可行区间起点，输出为最优路径在该行经过的第一个模板帧
+     * @param his 输入为每一行的可行区间终点，输出为最优路径在该行经过的最后一个模板帧
+     */
+    private void path(LocalDistance.Sequence x, LocalDistance.Sequence y, int[] los, int[] his) {
+        int n = x.length;
+        int m = y.length;
+        double[][] acc = new double[n][];
+        double[][] costs = new double[BLOCK_ROWS][m];
+        for (int ib = 0; ib < n; ib += BLOCK_ROWS) {
+            int ie = Math.min(n, ib + BLOCK_ROWS);
+            int blockLo = m;
+            int blockHi = -1;
+            for (int i = ib; i < ie; i++) {
+                blockLo = Math.min(blockLo, los[i]);
+                blockHi = Math.max(blockHi, his[i]);
+            }
+            localDistance.tile(x, ib, ie, y, blockLo, blockHi + 1, costs);
+
+            for (int i = ib; i < ie; i++) {
+                int lo = los[i];
+                int hi = his[i];
+                double[] cost = costs[i - ib];
+                double[] row = new double[hi - lo + 1];
+                double[] up = i > 0 ? acc[i - 1] : null;
+                int upLo = i > 0 ? los[i - 1] : 0;
+                int upHi = i > 0 ? his[i - 1] : -1;
+                double left = i == 0 ? 0 : Double.POSITIVE_INFINITY; // 起点的前驱视为 0
+                for (int j = lo; j <= hi; j++) {
+                    double above = j >= upLo && j <= upHi ? up[j - upLo] : Double.POSITIVE_INFINITY;
+                    double diagonal = j > upLo && j <= upHi + 1 ? up[j - 1 - upLo] : Double.POSITIVE_INFINITY;
+                    left = cost[j] + Math.min(Math.min(above, diagonal), left);
+                    row[j - lo] = left;
+                }
+                acc[i] = row;
+            }
+        }
+
+        // 从终点沿累计距离最小的方向回溯到起点，记录路径在每一行经过的模板帧范围
+        int[] pathLos = new int[n];
+        int[] pathHis = new int[n];
+        int i = n - 1;
+        int j = m - 1;
+        pathLos[i] = j;
+        pathHis[i] = j;
+        int row = i;
+        while (i > 0 || j > 0) {
+            double diagonal = accumulated(acc, los, his, i - 1, j - 1);
+            double up = accumulated(acc, los, his, i - 1, j);
+            double left = accumulated(acc, los, his, i, j - 1);
+            if (diagonal <= up && diagonal <= left) {
+                i--;
+                j--;
+            } else if (up <= left) {
+                i--;
+            } else {
+                j--;
+            }
+            if (i != row) {
+                // 回溯时列号只减不增，进入新的一行时遇到的是该行的最后一个模板帧
+                pathHis[i] = j;
+                row = i;
+            }
+            pathLos[i] = j;
+        }
+        System.arraycopy(pathLos, 0, los, 0, n);
+        System.arraycopy(pathHis, 0, his, 0, n);
+    }
+
+    /**
+     * 窗口内 (i, j) 处的累计距离，窗口外为无穷大
+     */
+    private static double accumulated(double[][] acc, int[] los, int[] his, int i, int j) {
+        if (i < 0 || j < los[i] || j > his[i]) {
+            return Double.POSITIVE_INFINITY;
+        }
+        return acc[i][j - los[i]];
+    }
+
+    /**
+     * 计算模板在 Sakoe-Chiba 带宽内的上下包络，供 LB_Keogh 使用，应在加载模型时预先计算
+     * <p>
+     * 包络每一维按该模板的取值范围量化为一个字节，上包络向上、下包络向下取整，下界依然成立，
+     * 每帧只占 2 × 维数个字节，远小于模板本身。
+     *
+     * @param template 模板的MFCC序列
+     * @return 模板的包络
+     */
+    Envelope envelope(LocalDistance.Sequence template) {
+        int m = template.length;
+        int dim = template.dim;
+        int r = (int) Math.ceil(radius * m);
+        double[] lows = new double[dim];
+        double[] steps = new double[dim];
+        for (int d = 0; d < dim; d++) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < m; j++) {
+                min = Math.min(min, template.get(j, d));
+                max = Math.max(max, template.get(j, d));
+            }
+            lows[d] = min;
+            // 步长略微放大，保证 255 级能覆盖到最大值
+            steps[d] = max > min ? Math.nextUp((max - min) / 255) : 1;
+        }
+        byte[] upper = new byte[m * dim];
+        byte[] lower = new byte[m * dim];
+        for (int j = 0; j < m; j++) {
+            for (int d = 0; d < dim; d++) {
+                double max = Double.NEGATIVE_INFINITY;
+                double min = Double.POSITIVE_INFINITY;
+                for (int k = Math.max(0, j - r); k <= Math.min(m - 1, j + r); k++) {
+                    max = Math.max(max, template.get(k, d));
+                    min = Math.min(min, template.get(k, d));
+                }
+                int u = (int) Math.min(255, Math.ceil((max - lows[d]) / steps[d]));
+                while (u < 255 && lows[d] + u * steps[d] < max) {
+                    u++;
+                }
+                int l = (int) Math.max(0, Math.floor((min - lows[d]) / steps[d]));
+                while (l > 0 && lows[d] + l * steps[d] > min) {
+                    l--;
+                }
+                upper[j * dim + d] = (byte) u;
+                lower[j * dim + d] = (byte) l;
+            }
+        }
+        double[] first = new double[dim];
+        double[] last = new double[dim];
+        for (int d = 0; d < dim; d++) {
+            first[d] = template.get(0, d);
+            last[d] = template.get(m - 1, d);
+        }
+        return new Envelope(r, m, upper, lower, lows, steps, first, last);
+    }
+
+    /**
+     * 依次计算 LB_Kim 和 LB_Keogh 下界，任一下界超过 abandonAbove 时立即返回
+     * <p>
+     * 只需要模板的包络，不需要模板本身。LB_Keogh 只在 Sakoe-Chiba 约束且包络半径与本次带宽一致时使用，其余情况只用 LB_Kim。
+     *
+     * @param input        输入的MFCC序列
+     * @param envelope     模板的包络
+     * @param abandonAbove 上界
+     * @return DTW距离的下界
+     */
+    double lowerBound(LocalDistance.Sequence input, Envelope envelope, double abandonAbove) {
+        int n = input.length;
+        int m = envelope.length;
+
+        // LB_Kim：任何路径都必须经过起点和终点
+        double lb = localDistance.distance(input, 0, envelope.first);
+        if (n > 1 || m > 1) {
+            lb += localDistance.distance(input, n - 1, envelope.last);
+        }
+        if (lb > abandonAbove || constraint != Constraint.SAKOE_CHIBA || envelope.radius != bandRadius(n, m)) {
+            return lb;
+        }
+
+        // LB_Keogh：输入的每一帧至少与带宽内的一个模板帧对齐，其代价不小于该帧到包络的距离
+        int dim = input.dim;
+        double slope = n > 1 ? (double) (m - 1) / (n - 1) : 0;
+        double keogh = 0;
+        for (int i = 0; i < n; i++) {
+            int center = (int) Math.round(i * slope);
+            double sum = 0;
+            for (int d = 0; d < dim; d++) {
+                double x = input.get(i, d);
+                double upper = envelope.upper(center, d);
+                double lower = envelope.lower(center, d);
+                double diff = x > upper ? x - upper : x < lower ? lower - x : 0;
+                sum += diff * diff;
+            }
+            keogh += localDistance.cost(sum);
+            if (keogh > abandonAbove) {
+                break;
+            }
+        }
+        return Math.max(lb, keogh);
+    }
+
+    /**
+     * 模板在带宽内逐帧的上下包络（按帧连续存储的量化值），以及计算 LB_Kim 用的首尾两帧
+     */
+    static final class Envelope {
+        final int radius;
+        final int length;
+        private final byte[] upper; // 第 j 帧第 d 维位于 [j * dim + d]，值为 lows[d] + 无符号量化值 × steps[d]
+        private final byte[] lower;
+        private final double[] lows; // 每一维量化值为 0 时对应的特征值
+        private final double[] steps; // 每一维的量化步长
+        final double[] first;
+        final double[] last;
+
+        Envelope(int radius, int length, byte[] upper, byte[] lower, double[] lows, double[] steps,
+                 double[] first, double[] last) {
+            this.radius = radius;
+            this.length = length;
+            this.upper = upper;
+            this.lower = lower;
+            this.lows = lows;
+            this.steps = steps;
+            this.first = first;
+            this.last = last;
+        }
+
+        /**
+         * 第 j 帧第 d 维的上包络，不小于带宽内的真实最大值
+         */
+        double upper(int j, int d) {
+            return lows[d] + (upper[j * lows.length + d] & 0xff) * steps[d];
+        }
+
+        /**
+         * 第 j 帧第 d 维的下包络，不大于带宽内的真实最小值
+         */
+        double lower(int j, int d) {
+            return lows[d] + (lower[j * lows.length + d] & 0xff) * steps[d];
+        }
+    }
+
+    /**
+     * 计算两个向量之间的欧几里得距离
+     *
+     * @param a 向量a（x1,y1,z1）
+     * @param b 向量b (x2,y2,z2)
+     * @return 向量a和向量b之间的欧几里得距离
+     */
+    static double calculateEuclideanDistance(double[] a, double[] b) {
+        double distance = 0;
+        for (int i = 0; i < a.length; i++) {
+            distance += (a[i] - b[i]) * (a[i] - b[i]); // 计算两个向量在每个维度上的差值的平方
+        }
+        return Math.sqrt(distance); // 返回差值平方和的平方根
+    }
+}
@@ -0,0 +1,206 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MfccConfig;
+import demo.weilikai.simpleasr.util.Kernels;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从录音中切分出的模板特征的缓存，按录音内容和特征配置寻址
+ * <p>
+ * 每个录音文件对应缓存目录下的一个文件，文件名是特征配置与录音内容的 SHA-256。录音改名或移动后仍能命中，
+ * 录音内容、前端或 VAD 的配置变化后自然不再命中，因此重新编译模型时只有新增或修改过的录音需要重新做 VAD 和 MFCC。
+ * <p>
+ * 缓存文件格式（小端序）：
+ * <pre>
+ * int    magic              "SAFC"
+ * int    句子数，随后每句话：int 帧数 + double[帧数 × MFCC维数]
+ * </pre>
+ * 先写临时文件再原子改名，多个编译进程共用一个缓存目录也不会读到写了一半的文件；读取失败的缓存文件当作未命中。
+ */
+final class FeatureCache {
+
+    static final int MAGIC = 0x43464153; // "SAFC"
+    static final int VERSION = 1; // 缓存文件格式的版本；切分逻辑的变化由 ModuleLoader.featureConfig() 体现
+
+    private static final byte[] FEATURE_CONFIG = featureConfig();
+
+    private final File dir;
+    private final int dim = MfccConfig.DEFAULT.numCoefficients();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param dir 缓存目录，不存在时创建
+     * @throws IOException 目录创建失败
+     */
+    FeatureCache(File dir) throws IOException {
+        this.dir = Files.createDirectories(dir.toPath()).toFile();
+    }
+
+    /**
+     * 切分配置加上计算内核：不同内核的浮点运算顺序不同，特征会有细微差别
+     */
+    private static byte[] featureConfig() {
+        String config = "cache=" + VERSION + ";" + ModuleLoader.featureConfig() + ";kernels=" + Kernels.get().name();
+        return config.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从音频文件中提取特征，缓存中有相同内容的录音时直接读取
+     *
+     * @param audio 音频文件
+     * @return 每句话的 MFCC 特征，与 ModuleLoader.extractFeaturesFromAudioFile 的结果相同
+     * @throws IOException 文件读取异常
+     */
+    List<double[][]> extract(File audio) throws IOException {
+        File file = new File(dir, key(audio) + ".feat");
+        List<double[][]> features = read(file);
+        if (null != features) {
+            hits.incrementAndGet();
+            return features;
+        }
+        features = ModuleLoader.extractFeaturesFromAudioFile(audio);
+        misses.incrementAndGet();
+        try {
+            write(file, features);
+        } catch (IOException e) {
+            // 缓存只用于加速，写不进去不影响本次编译
+            AsrLog.warning("特征缓存写入失败：" + file + "，" + e.getMessage());
+        }
+        return features;
+    }
+
+    /**
+     * @return 命中缓存的文件数
+     */
+    int hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return 重新提取特征的文件数
+     */
+    int misses() {
+        return misses.get();
+    }
+
+    /**
+     * 按块读取整个文件计算特征配置与录音内容的 SHA-256
+     */
+    private static String key(File audio) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(FEATURE_CONFIG);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(audio.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return 缓存的特征，没有缓存或缓存文件损坏时返回 null
+     */
+    private List<double[][]> read(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(channel.size())).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // 读满为止
+            }
+            buffer.flip();
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("不是特征缓存文件");
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / 4) {
+                throw new IOException("句子数不正确：" + count);
+            }
+            List<double[][]> features = new ArrayList<>(count);
+            for (int u = 0; u < count; u++) {
+                int frames = buffer.getInt();
+                if (frames < 0 || frames > buffer.remaining() / (8 * dim)) {
+                    throw new IOException("帧数不正确：" + frames);
+                }
+                double[][] utterance = new double[frames][dim];
+                for (double[] frame : utterance) {
+                    for (int d = 0; d < dim; d++) {
+                        frame[d] = buffer.getDouble();
+                    }
+                }
+                features.add(utterance);
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("文件末尾有多余的数据");
+            }
+            return features;
+        } catch (IOException | IllegalArgumentException | ArithmeticException | BufferUnderflowException e) {
+            AsrLog.warning("特征缓存已损坏，重新提取：" + file + "，" + e);
+            return null;
+        }
+    }
+
+    private void write(File file, List<double[][]> features) throws IOException {
+        long size = 8;
+        for (double[][] utterance : features) {
+            size += 4 + 8L * utterance.length * dim;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size)).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(features.size());
+        for (double[][] utterance : features) {
+            buffer.putInt(utterance.length);
+            for (double[] frame : utterance) {
+                if (frame.length != dim) {
+                    throw new IllegalArgumentException("特征维数必须是" + dim + "，实际为" + frame.length);
+                }
+                for (double value : frame) {
+                    buffer.putDouble(value);
+                }
+            }
+        }
+        buffer.flip();
+
+        // 不用 Files.createTempFile，它第一次调用时初始化 SecureRandom 要花上数百毫秒
+        Path temp = new File(dir, file.getName() + "." + Thread.currentThread().getId() + "." + System.nanoTime() + ".tmp").toPath();
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
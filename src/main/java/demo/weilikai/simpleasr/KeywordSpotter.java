@@ -0,0 +1,254 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 唤醒词检出：不经过 VAD 切分，直接在连续的 MFCC 流上做子序列 DTW
+ * <p>
+ * 每个唤醒词模板保存 DTW 矩阵中当前输入帧对应的一列累计距离，路径可以从任意一个输入帧开始（开放起点），
+ * 每来一帧推进一列，模板最后一帧的累计距离按路径长度归一化后低于 mThreshold 时立即报告一次检出，
+ * 不必等待说话结束后的静音。每帧的计算量只与唤醒词模板的总帧数有关，与已经输入的音频长度无关。
+ * <p>
+ * 解码后的模板放在不可变的 Keywords 中，由所有音频流共用；每个 KeywordSpotter 只保存自己的累计距离。
+ */
+class KeywordSpotter {
+
+    /**
+     * 一次唤醒词检出
+     */
+    static final class Detection {
+        final String word;
+        final long startMs; // 唤醒词开始的时刻，从音频流开始计
+        final long endMs; // 唤醒词结束的时刻
+        final double score; // 归一化的DTW距离
+
+        Detection(String word, long startMs, long endMs, double score) {
+            this.word = word;
+            this.startMs = startMs;
+            this.endMs = endMs;
+            this.score = score;
+        }
+
+        @Override
+        public String toString() {
+            return word + " [" + startMs + "ms, " + endMs + "ms] " + String.format("%.2f", score);
+        }
+    }
+
+    /**
+     * 唤醒词模板：从模型中选出、去掉首尾静音并解码好的帧序列，构造后不再修改，可以由多个线程同时读取
+     */
+    static final class Keywords {
+        final TemplateStore source; // 选取模板的模型
+        final Dtw dtw;
+        final Set<String> requested; // 构造时要求的唤醒词
+        private final List<String> words = new ArrayList<>(); // 模型中有模板的唤醒词
+        private final int[] templateWords; // 每个模板对应 words 中的下标
+        private final LocalDistance.Sequence[] templates;
+        private final int maxLength;
+
+        /**
+         * @param templates 模板，只使用其中属于唤醒词的模板
+         * @param dtw       提供帧间距离的度量
+         * @param keywords  唤醒词
+         */
+        Keywords(TemplateStore templates, Dtw dtw, Collection<String> keywords) {
+            this.source = templates;
+            this.dtw = dtw;
+            this.requested = Collections.unmodifiableSet(new HashSet<>(keywords));
+            List<Integer> selected = new ArrayList<>();
+            for (int t = 0; t < templates.size(); t++) {
+                if (keywords.contains(templates.word(t))) {
+                    selected.add(t);
+                    if (!words.contains(templates.word(t))) {
+                        words.add(templates.word(t));
+                    }
+                }
+            }
+            int count = selected.size();
+            templateWords = new int[count];
+            this.templates = new LocalDistance.Sequence[count];
+            int max = 0;
+            for (int k = 0; k < count; k++) {
+                int t = selected.get(k);
+                templateWords[k] = words.indexOf(templates.word(t));
+                this.templates[k] = LocalDistance.Sequence.of(trim(templates.frames(t)));
+                max = Math.max(max, this.templates[k].length);
+            }
+            maxLength = max;
+        }
+
+        /**
+         * @return 是否是按这些参数构造的，可以直接复用
+         */
+        boolean builtFrom(TemplateStore templates, Dtw dtw, Collection<String> keywords) {
+            return source == templates && this.dtw == dtw && requested.equals(new HashSet<>(keywords));
+        }
+    }
+
+    static final double TRIM_BELOW_PEAK = 15; // 模板首尾 c0 比峰值低这么多的帧视为静音，不参与匹配
+
+    private final Keywords keywords;
+    private final LocalDistance localDistance;
+    private final double[][] prev; // 每个模板上一帧的累计距离
+    private final double[][] curr;
+    private final int[][] prevStarts; // 每个单元格所在路径的起始输入帧
+    private final int[][] currStarts;
+    private final double[][] costs;
+    private long frames = 0; // 已处理的 MFCC 帧数
+    private long resetFrame = 0; // 上次检出后重新开始计算的帧
+
+    double mThreshold = 2.4; // 归一化DTW距离低于该值时认为检出，按欧氏距离标定
+    double mMinSpan = 0.75; // 匹配的输入长度至少为模板长度的该比例，“小度小度”这类重复的词过短时只匹配到一半
+    double mMaxSpan = 2.0; // 匹配的输入长度至多为模板长度的该比例
+
+    /**
+     * @param templates 模板，只使用其中属于唤醒词的模板
+     * @param dtw       提供帧间距离的度量
+     * @param keywords  唤醒词
+     */
+    KeywordSpotter(TemplateStore templates, Dtw dtw, Collection<String> keywords) {
+        this(new Keywords(templates, dtw, keywords));
+    }
+
+    /**
+     * @param keywords 共用的唤醒词模板
+     */
+    KeywordSpotter(Keywords keywords) {
+        this.keywords = keywords;
+        localDistance = keywords.dtw.localDistance();
+        int count = keywords.templates.length;
+        prev = new double[count][];
+        curr = new double[count][];
+        prevStarts = new int[count][];
+        currStarts = new int[count][];
+        for (int k = 0; k < count; k++) {
+            int m = keywords.templates[k].length;
+            prev[k] = new double[m];
+            curr[k] = new double[m];
+            prevStarts[k] = new int[m];
+            currStarts[k] = new int[m];
+        }
+        costs = new double[1][keywords.maxLength];
+    }
+
+    /**
+     * 去掉模板首尾的静音帧：VAD 切出的句子前后带有静音，连续音频中的任意一段静音都能与之匹配
+     */
+    static double[][] trim(double[][] frames) {
+        double peak = Double.NEGATIVE_INFINITY;
+        for (double[] frame : frames) {
+            peak = Math.max(peak, frame[0]);
+        }
+        int from = 0;
+        int to = frames.length;
+        while (from < to && frames[from][0] < peak - TRIM_BELOW_PEAK) {
+            from++;
+        }
+        while (to > from && frames[to - 1][0] < peak - TRIM_BELOW_PEAK) {
+            to--;
+        }
+        return Arrays.copyOfRange(frames, from, to);
+    }
+
+    /**
+     * @return 实际参与检出的唤醒词（模型中没有模板的词不在其中）
+     */
+    List<String> words() {
+        return Collections.unmodifiableList(keywords.words);
+    }
+
+    /**
+     * 送入一帧 MFCC，推进所有唤醒词模板
+     *
+     * @param feature 一帧 MFCC 特征
+     * @return 以这一帧结束的唤醒词，没有时返回 null
+     */
+    Detection advance(double[] feature) {
+        int frame = (int) (frames - resetFrame); // 上次检出后的帧序号
+        LocalDistance.Sequence input = LocalDistance.Sequence.of(new double[][]{feature});
+        List<String> words = keywords.words;
+        LocalDistance.Sequence[] templates = keywords.templates;
+        double[] bestScores = new double[words.size()];
+        int[] bestStarts = new int[words.size()];
+        Arrays.fill(bestScores, Double.POSITIVE_INFINITY);
+
+        for (int k = 0; k < templates.length; k++) {
+            LocalDistance.Sequence template = templates[k];
+            int m = template.length;
+            localDistance.tile(input, 0, 1, template, 0, m, costs);
+            double[] cost = costs[0];
+            double[] p = prev[k];
+            double[] c = curr[k];
+            int[] ps = prevStarts[k];
+            int[] cs = currStarts[k];
+            // 开放起点：模板第一帧总可以从当前输入帧重新开始
+            c[0] = cost[0];
+            cs[0] = frame;
+            for (int j = 1; j < m; j++) {
+                double best = c[j - 1];
+                int start = cs[j - 1];
+                if (frame > 0) {
+                    if (p[j - 1] < best) {
+                        best = p[j - 1];
+                        start = ps[j - 1];
+                    }
+                    if (p[j] < best) {
+                        best = p[j];
+                        start = ps[j];
+                    }
+                }
+                c[j] = cost[j] + best;
+                cs[j] = start;
+            }
+            prev[k] = c;
+            curr[k] = p;
+            prevStarts[k] = cs;
+            currStarts[k] = ps;
+
+            // 按路径长度的上界（输入帧数 + 模板帧数）归一化
+            int span = frame - cs[m - 1] + 1;
+            if (span >= m * mMinSpan && span <= m * mMaxSpan) {
+                double score = c[m - 1] / (span + m);
+                int w = keywords.templateWords[k];
+                if (score < bestScores[w]) {
+                    bestScores[w] = score;
+                    bestStarts[w] = cs[m - 1];
+                }
+            }
+        }
+
+        Detection detection = null;
+        int best = -1;
+        for (int w = 0; w < words.size(); w++) {
+            if (bestScores[w] < mThreshold && (best < 0 || bestScores[w] < bestScores[best])) {
+                best = w;
+            }
+        }
+        if (best >= 0) {
+            long startFrame = resetFrame + bestStarts[best];
+            detection = new Detection(words.get(best), frameToMs(startFrame), frameToMs(frames) + frameMs(MFCC.FRAME_SIZE),
+                    bestScores[best]);
+            // 检出后从下一帧重新开始，避免同一次说话被重复报告
+            resetFrame = frames + 1;
+        }
+        frames++;
+        return detection;
+    }
+
+    private static long frameToMs(long frame) {
+        return frameMs(frame * MFCC.FRAME_SHIFT);
+    }
+
+    private static long frameMs(long samples) {
+        return samples * 1000 / MFCC.SAMPLE_RATE;
+    }
+}
@@ -0,0 +1,129 @@
+package demo.weilikai.simpleasr;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 耗时的对数直方图，每个 2 的幂区间再等分为 SUB_BUCKETS 份，相对误差不超过 25%
+ * <p>
+ * 与 LongAdder 一样把计数分散到固定的 STRIPES 组上，线程按编号选组，记录时只有两次基本无竞争的原子加法；
+ * 组数固定，不随线程的创建和退出增长。读取时把所有组的计数加起来，读到的是近似一致的快照。
+ * reset 只记下当前的计数作为基线，不会与写入线程竞争。
+ */
+final class LatencyHistogram {
+
+    static final int SUB_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = 64 * SUB_BUCKETS;
+    private static final int SUM = BUCKETS; // 每组计数的最后一格是耗时总和
+    static final int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1; // 不小于处理器数两倍的 2 的幂
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private volatile long[] baseline = new long[BUCKETS + 1];
+
+    LatencyHistogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        }
+    }
+
+    /**
+     * 记录一次耗时
+     *
+     * @param nanos 耗时（纳秒）
+     */
+    void record(long nanos) {
+        AtomicLongArray counts = stripes[stripe(Thread.currentThread().getId())];
+        counts.incrementAndGet(bucket(Math.max(0, nanos)));
+        counts.addAndGet(SUM, nanos);
+    }
+
+    /**
+     * 线程编号通常是连续分配的，同时活跃的线程不超过处理器数的两倍时基本各占一组
+     */
+    static int stripe(long threadId) {
+        long h = threadId * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (STRIPES - 1);
+    }
+
+    /**
+     * 记录从 startNanos 到现在的耗时
+     *
+     * @param startNanos System.nanoTime() 的起始值
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return 落入该区间的耗时的上界（纳秒）
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS - 1 + SUB_BITS;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    private long[] merge() {
+        long[] total = new long[BUCKETS + 1];
+        for (AtomicLongArray counts : stripes) {
+            for (int i = 0; i <= BUCKETS; i++) {
+                total[i] += counts.get(i);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 从现在开始重新统计
+     */
+    void reset() {
+        baseline = merge();
+    }
+
+    /**
+     * @return 自上次 reset 以来的统计
+     */
+    AsrMetricsMXBean.Latency snapshot() {
+        long[] total = merge();
+        long[] base = baseline;
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total[i] -= base[i];
+            count += total[i];
+        }
+        long sum = total[SUM] - base[SUM];
+        return new AsrMetricsMXBean.Latency(count, count == 0 ? 0 : sum / 1e3 / count,
+                percentile(total, count, 0.5), percentile(total, count, 0.9), percentile(total, count, 0.99),
+                percentile(total, count, 1));
+    }
+
+    /**
+     * @return 第 p 分位所在区间的上界（微秒）
+     */
+    private static double percentile(long[] counts, long count, double p) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i) / 1e3;
+            }
+        }
+        return upperBound(BUCKETS - 1) / 1e3;
+    }
+}
@@ -0,0 +1,182 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.util.Kernels;
+
+import java.util.Arrays;
+
+/**
+ * DTW 的局部距离（帧间代价）计算
+ * <p>
+ * 序列按维度优先存放，并预先算好每帧的平方范数，
+ * 两帧之间的平方欧氏距离按 |x|² + |y|² - 2·x·y 展开，只需计算点积。
+ * 一次计算输入若干帧与模板若干帧组成的整块代价，按列分块，使模板数据留在 L1/L2 缓存中。
+ */
+final class LocalDistance {
+
+    /**
+     * 帧间距离的度量
+     */
+    enum Metric {
+        /**
+         * 平方欧氏距离，省去开方
+         */
+        SQUARED_EUCLIDEAN,
+        /**
+         * 欧氏距离
+         */
+        EUCLIDEAN
+    }
+
+    static final int BLOCK_COLUMNS = 64; // 每块的模板帧数，64 帧 × 13 维约 6.5KB
+
+    private final Metric metric;
+    private final Kernels kernels = Kernels.get();
+
+    LocalDistance(Metric metric) {
+        this.metric = metric;
+    }
+
+    Metric metric() {
+        return metric;
+    }
+
+    /**
+     * 把平方欧氏距离换算为当前度量下的距离
+     */
+    double cost(double squared) {
+        return metric == Metric.EUCLIDEAN ? Math.sqrt(squared) : squared;
+    }
+
+    /**
+     * 计算 a 的第 i 帧与帧 y 之间的距离
+     */
+    double distance(Sequence a, int i, double[] y) {
+        double sum = 0;
+        for (int d = 0; d < a.dim; d++) {
+            double diff = a.get(i, d) - y[d];
+            sum += diff * diff;
+        }
+        return cost(sum);
+    }
+
+    /**
+     * 计算 a 的 [i0, i1) 帧与 b 的 [j0, j1) 帧两两之间的距离
+     * <p>
+     * 最内层循环沿模板帧方向以相同下标访问输出和模板的某一维，交给 Kernels 向量化计算。
+     *
+     * @param out 输出，out[i - i0][j] 为 a 的第 i 帧与 b 的第 j 帧之间的距离，每行长度不小于 j1
+     */
+    void tile(Sequence a, int i0, int i1, Sequence b, int j0, int j1, double[][] out) {
+        if (a.dim != b.dim) {
+            throw new IllegalArgumentException("特征维数不一致：" + a.dim + " != " + b.dim);
+        }
+        int dim = a.dim;
+        double[][] columns = b.columns;
+        double[] yn = columns[dim];
+        for (int jb = j0; jb < j1; jb += BLOCK_COLUMNS) {
+            int je = Math.min(j1, jb + BLOCK_COLUMNS);
+            for (int i = i0; i < i1; i++) {
+                double xx = a.norm(i);
+                double[] row = out[i - i0];
+                // |x|² + |y|² - 2·x·y，逐维累加
+                for (int j = jb; j < je; j++) {
+                    row[j] = xx + yn[j];
+                }
+                for (int d = 0; d < dim; d++) {
+                    kernels.axpy(-2 * a.get(i, d), columns[d], row, jb, je);
+                }
+                // 舍入误差可能使结果略小于 0，真实值此时接近 0，取绝对值即可
+                if (metric == Metric.EUCLIDEAN) {
+                    kernels.sqrtAbs(row, jb, je);
+                } else {
+                    kernels.abs(row, jb, je);
+                }
+            }
+        }
+    }
+
+    /**
+     * 按维度优先存放的特征序列：第 i 帧第 d 维位于 columns[d][i]，columns[dim][i] 为第 i 帧的平方范数
+     */
+    static final class Sequence {
+        final double[][] columns;
+        final int length;
+        final int dim;
+        private Sequence coarse; // downsample() 的结果，多个线程同时计算时只会重复计算，不会出错
+
+        Sequence(double[][] columns, int length, int dim) {
+            this.columns = columns;
+            this.length = length;
+            this.dim = dim;
+        }
+
+        /**
+         * 把逐帧存放的特征转置为按维度优先存放，并计算每帧的平方范数
+         *
+         * @param frames 特征序列，每帧维数相同
+         * @return 按维度优先存放的序列
+         */
+        static Sequence of(double[][] frames) {
+            int dim = frames.length > 0 ? frames[0].length : 0;
+            double[][] columns = new double[dim + 1][frames.length];
+            for (int i = 0; i < frames.length; i++) {
+                for (int d = 0; d < dim; d++) {
+                    columns[d][i] = frames[i][d];
+                }
+            }
+            computeNorms(columns, frames.length, dim);
+            return new Sequence(columns, frames.length, dim);
+        }
+
+        /**
+         * 根据 columns 的前 dim 行计算前 length 帧的平方范数，写入 columns[dim]
+         */
+        static void computeNorms(double[][] columns, int length, int dim) {
+            double[] norms = columns[dim];
+            Arrays.fill(norms, 0, length, 0);
+            for (int d = 0; d < dim; d++) {
+                double[] column = columns[d];
+                for (int i = 0; i < length; i++) {
+                    norms[i] += column[i] * column[i];
+                }
+            }
+        }
+
+        /**
+         * 相邻两帧取平均，得到长度减半（向上取整）的序列，奇数长度时最后一帧保持不变
+         * <p>
+         * 结果会被缓存，同一输入与多个模板比较时只计算一次；调用后不应再修改 columns。
+         */
+        Sequence downsample() {
+            if (null != coarse) {
+                return coarse;
+            }
+            int half = (length + 1) / 2;
+            double[][] columns = new double[dim + 1][half];
+            for (int d = 0; d < dim; d++) {
+                double[] column = this.columns[d];
+                for (int k = 0; k < half; k++) {
+                    int next = Math.min(2 * k + 1, length - 1);
+                    columns[d][k] = (column[2 * k] + column[next]) / 2;
+                }
+            }
+            computeNorms(columns, half, dim);
+            coarse = new Sequence(columns, half, dim);
+            return coarse;
+        }
+
+        /**
+         * 第 i 帧第 d 维的值
+         */
+        double get(int i, int d) {
+            return columns[d][i];
+        }
+
+        /**
+         * 第 i 帧的平方范数
+         */
+        double norm(int i) {
+            return columns[dim][i];
+        }
+    }
+}
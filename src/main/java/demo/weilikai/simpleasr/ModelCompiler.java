@@ -0,0 +1,40 @@
+package demo.weilikai.simpleasr;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 离线编译模型：从录音目录中切分句子、提取 MFCC 模板，并保存为预编译模型文件
+ * <p>
+ * 用法：ModelCompiler [录音目录] [输出文件] [每个词的模板数] [medoids|dba] [枢轴数]，默认将 assets/simple_asr/asr_model 编译为 assets/simple_asr/asr_model.bin，
+ * 给出模板数时按 DTW 距离把每个词的模板精简到不超过该数目（0 表示全部保留）；
+ * 同时用 DEFAULT_PIVOTS（或给出的枢轴数）个枢轴建立近邻索引，枢轴数为 0 时不建索引。
+ * <p>
+ * 提取的特征按录音内容缓存在 FEATURE_CACHE 目录下，再次编译时只有新增或修改过的录音需要重新提取。
+ */
+public class ModelCompiler {
+    static final int DEFAULT_PIVOTS = 8;
+    static final String FEATURE_CACHE = "output/feature_cache";
+
+    public static void main(String[] args) throws IOException {
+        String modelDir = args.length > 0 ? args[0] : "assets/simple_asr/asr_model";
+        String outFile = args.length > 1 ? args[1] : modelDir + ".bin";
+
+        new File("output").mkdirs();
+        SimpleDec decoder = new SimpleDec();
+        decoder.mFeatureCache = new File(FEATURE_CACHE);
+        if (args.length > 2) {
+            decoder.mTemplateBudget = Integer.parseInt(args[2]);
+        }
+        if (args.length > 3) {
+            decoder.mReduction = TemplateReducer.Method.valueOf(args[3].toUpperCase());
+        }
+        int pivots = args.length > 4 ? Integer.parseInt(args[4]) : DEFAULT_PIVOTS;
+        decoder.loadModel(modelDir);
+        if (pivots > 0) {
+            decoder.buildIndex(pivots);
+        }
+        decoder.saveModel(outFile);
+        System.out.println("模型已编译：" + outFile);
+    }
+}
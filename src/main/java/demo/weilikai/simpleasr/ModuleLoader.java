@@ -1,10 +1,9 @@
 package demo.weilikai.simpleasr;
 
-import demo.weilikai.simpleasr.util.MfccFeature;
+import demo.weilikai.simpleasr.mfcc.MFCC;
+import demo.weilikai.simpleasr.mfcc.MfccConfig;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -13,6 +12,28 @@ import java.util.Queue;
 
 public class ModuleLoader {
 
+    static final int SEGMENTATION_VERSION = 2; // 修改下面的切分逻辑时递增，使已编译的模型和缓存的特征失效
+    static final int TRAILING_SILENCE_FRAMES = 12; // 模板只保留说话结束前最后一段静音的这么多帧，与 SimpleAsr.decodeSilenceFrames 的默认值相同，两边的结尾静音一样长
+
+    /**
+     * 影响切分结果和特征数值的配置：切分逻辑的版本、MFCC 配置、VAD 参数、说话前保留的帧数、每次送入的采样点数和结尾保留的静音帧数
+     * <p>
+     * 编译好的模型和特征缓存都记录这份配置，与当前程序不一致时说明模板来自不同的前端，需要重新提取。
+     *
+     * @return 配置的文本描述
+     */
+    static String featureConfig() {
+        MfccConfig mfcc = MfccConfig.DEFAULT;
+        return "segmentation=" + SEGMENTATION_VERSION
+                + ";mfcc=" + mfcc.sampleRate() + "," + mfcc.frameSize() + "," + mfcc.frameShift() + "," + mfcc.fftSize()
+                + "," + mfcc.numFilters() + "," + mfcc.numCoefficients() + "," + mfcc.preEmphasis()
+                + ";vad=" + SimpleVad.START_FRAMES + "," + SimpleVad.START_GAP + "," + SimpleVad.END_FRAMES + "," + SimpleVad.MARGIN
+                + "," + SimpleVad.MIN_THRESHOLD + "," + SimpleVad.FLOOR_RISE + "," + SimpleVad.FLOOR_FALL
+                + ";preroll=" + AsrStream.PREROLL_FRAMES + "," + AsrStream.PREROLL_CHUNKS
+                + ";chunk=" + PcmInput.CHUNK_SAMPLES
+                + ";trailing=" + TRAILING_SILENCE_FRAMES;
+    }
+
     /**
      * 从音频文件中提取特征
      *
@@ -21,47 +42,86 @@ public class ModuleLoader {
      * @throws IOException 文件读取异常
      */
     public static List<double[][]> extractFeaturesFromAudioFile(File file) throws IOException {
+        return extractFeaturesFromAudioFile(file, null);
+    }
+
+    /**
+     * 从音频文件中提取特征
+     *
+     * @param file     音频文件，16 位小端 pcm 或 WAV
+     * @param recorder 非空时把切分出的每句话交给它录音（文件名为音频文件名加句子序号），用于检查 VAD 的切分
+     * @return 返回每句话的 MFCC 特征，包含多个 MFCC 特征数组
+     * @throws IOException 文件读取异常
+     */
+    public static List<double[][]> extractFeaturesFromAudioFile(File file, AudioRecorder recorder) throws IOException {
         List<double[][]> mulFileFeatures = new ArrayList<>();
         SimpleVad vad = new SimpleVad();
-        short[] samples = MfccFeature.loadSamples(file);
-        List<short[]> frames = MfccFeature.sample2Group(samples, 400);
+        MFCC mfcc = new MFCC(MFCC.FRAME_SIZE * 8);
         Queue<short[]> queues = new LinkedList<>();
-        int vadConfidence = 0;
+        Queue<double[]> featureQueue = new LinkedList<>();
         int sentenceIndex = 1;
         List<short[]> samplesForSingleFile = null;
-        for (short[] signals : frames) {
-            int vadState = vad.detectVoiceActivityFSM(signals);
-            switch (vadState) {
-                case 0:
-                    queues.offer(signals);
-                    while (queues.size() > 10) {
-                        queues.poll();
-                    }
-                    break;
-                case 1:
-                    if (null == samplesForSingleFile) {
-                        samplesForSingleFile = new ArrayList<>();
-                        while (queues.size() > 0) {
-                            samplesForSingleFile.add(queues.poll());
-                        }
+        List<double[]> featuresForSingleFile = null;
+        int keptFrames = -1; // 按 TRAILING_SILENCE_FRAMES 截取的帧数，-1 表示保留全部
+        // 按块流式读取，不必把整个文件读入内存
+        try (PcmInput in = PcmInput.open(file)) {
+            short[] signals;
+            while (null != (signals = in.next())) {
+                // 同一份 MFCC 既用于 VAD，也作为模板特征
+                for (double[] feature : mfcc.mfccWithStride(signals, 10)) {
+                    int vadState = vad.detectVoiceActivityFSM(feature);
+                    switch (vadState) {
+                        case 0:
+                            featureQueue.offer(feature);
+                            while (featureQueue.size() > AsrStream.PREROLL_FRAMES) {
+                                featureQueue.poll();
+                            }
+                            break;
+                        case 1:
+                            if (null == featuresForSingleFile) {
+                                featuresForSingleFile = new ArrayList<>(featureQueue);
+                                featureQueue.clear();
+                                samplesForSingleFile = new ArrayList<>(queues);
+                                queues.clear();
+                            }
+                            featuresForSingleFile.add(feature);
+                            // 与 AsrStream 截取离线解码输入的规则相同
+                            int silence = vad.silenceFrames();
+                            if (0 == silence) {
+                                keptFrames = -1;
+                            } else if (TRAILING_SILENCE_FRAMES == silence) {
+                                keptFrames = featuresForSingleFile.size();
+                            }
+                            break;
+                        case 2:
+                            if (null != recorder) {
+                                AudioRecorder.Recording recording = recorder.open(file.getName() + sentenceIndex++);
+                                for (short[] shorts : samplesForSingleFile) {
+                                    recording.write(shorts);
+                                }
+                                recording.close();
+                            }
+
+                            if (keptFrames >= 0) {
+                                featuresForSingleFile = featuresForSingleFile.subList(0, keptFrames);
+                            }
+                            mulFileFeatures.add(featuresForSingleFile.toArray(new double[0][]));
+                            samplesForSingleFile = null;
+                            featuresForSingleFile = null;
+                            keptFrames = -1;
+                            break;
+                        default:
+                            break;
                     }
+                }
+                if (null != samplesForSingleFile) {
                     samplesForSingleFile.add(signals);
-                    break;
-                case 2:
-                    try (DataOutputStream outfile = new DataOutputStream(new FileOutputStream("output/" + file.getName() + "" + sentenceIndex++ + ".pcm"))) {
-                        for (short[] shorts : samplesForSingleFile) {
-                            for (short signal : shorts) {
-                                outfile.writeByte(signal >> 0);
-                                outfile.writeByte(signal >> 8);
-                            }
-                        }
+                } else {
+                    queues.offer(signals);
+                    while (queues.size() > AsrStream.PREROLL_CHUNKS) {
+                        queues.poll();
                     }
-
-                    mulFileFeatures.add(MfccFeature.extractFeatures(samplesForSingleFile).toArray(new double[0][]));
-                    samplesForSingleFile = null;
-                    break;
-                default:
-                    break;
+                }
             }
         }
         return mulFileFeatures;
@@ -0,0 +1,431 @@
+package demo.weilikai.simpleasr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * 在线（增量）DTW 解码器
+ * <p>
+ * 每个模板保存 DTW 矩阵中当前输入帧对应的一行累计距离，每来一帧 MFCC 就推进一行，
+ * 因此说话结束时只需读出每个模板最后一格的距离即可给出结果，不必再对整句话重新计算 DTW。
+ * 全局路径约束取决于句子的总长度，说话过程中无法使用，逐帧推进的都是不加约束的 DTW：
+ * mDtw 不加约束时 finish() 直接使用这些距离；否则它们只是 mDtw 下距离的下界，finish() 把它们作为下界交给 SimpleDec
+ * 按 mDtw 打分，结果与离线解码完全一致，但说话结束后仍要计算带约束的 DTW。
+ * <p>
+ * 每一行的最小值是该模板最终距离的下界，且只增不减。只取最好的 K 个模板的词，行最小值已远超该词当前第 K 好距离的模板不再推进；
+ * 对所有模板取平均的词，得分下界已远超第 mMaxCandidates 好的词当前得分时整个词不再推进。
+ * 冻结的行最小值仍是其最终距离的下界；说话结束时只有可能改变候选词得分的冻结模板才用保存的输入帧补算，
+ * 因此 finish() 的结果与推进全部模板完全一致。各词的当前得分和得分下界每帧用大小为 K 的堆统计，不排序。
+ * <p>
+ * 若其他词的得分下界都已超过领先词当前得分的 mEarlyMargin 倍，且领先词按这些得分通过判决和拒识，则在说话过程中提前给出结果。
+ * 说话尚未结束时领先词的最终得分没有上界，提前结果只是预测；finish() 仍按完整的得分判决，不直接沿用提前结果，
+ * 两者不一致的次数计入 AsrMetrics。
+ */
+class OnlineDec {
+
+    private final SimpleDec decoder;
+    private final TemplateModel model;
+    private final TemplateStore templates;
+    private final double[][] columns; // 逐个模板临时解码用的缓冲区，按模板最大帧数分配
+    private final int[][] wordTemplates; // 每个词的模板编号
+    private final double[][] prev; // 每个模板上一帧的累计距离
+    private final double[][] curr;
+    private final double[] rowMins; // 每个模板当前行的最小累计距离，即最终距离的下界
+    private final boolean[] abandoned; // 不再推进的模板，rowMins 停留在放弃时的值
+    private final double[][] costs; // 当前输入帧与模板各帧的局部距离
+    private final TopK[] ends; // 每个词未放弃的模板中，输入到此结束时最好的 K 个距离
+    private final TopK[] bounds; // 每个词所有模板的行最小值中最小的 K 个
+    private final TopK candidates; // 各词当前得分中最好的 mMaxCandidates 个
+    private final List<double[]> input = new ArrayList<>(); // 已送入的帧，补算冻结的模板时使用
+    private int frames = 0;
+    private String earlyResult;
+    private long dtwNanos = 0; // 逐帧推进 DTW 的累计耗时
+
+    double mEarlyMargin = 1.5; // 其他词的得分下界超过领先词当前得分的倍数时，认为其已无希望
+    double mEarlyMinLength = 0.75; // 输入长度至少达到领先词最短模板长度的该比例，才允许提前给出结果
+    double mAbandonMargin = 1.2; // 模板的行最小值（或整个词的得分下界）超过对应上界的倍数时不再推进；说话结束时若仍可能影响候选则补算
+
+    OnlineDec(SimpleDec decoder) {
+        this.decoder = decoder;
+        this.model = decoder.model(); // 说话过程中词表被修改时，这句话仍按开始时的模板解码
+        this.templates = model.store;
+        prev = new double[templates.size()][];
+        curr = new double[templates.size()][];
+        int maxLength = 0;
+        int[] counts = new int[templates.words().size()];
+        for (int i = 0; i < templates.size(); i++) {
+            prev[i] = new double[templates.length(i)];
+            curr[i] = new double[templates.length(i)];
+            maxLength = Math.max(maxLength, templates.length(i));
+            counts[templates.wordId(i)]++;
+        }
+        wordTemplates = new int[counts.length][];
+        ends = new TopK[counts.length];
+        bounds = new TopK[counts.length];
+        for (int w = 0; w < counts.length; w++) {
+            wordTemplates[w] = new int[counts[w]];
+            int k = Math.min(decoder.mTopK, counts[w]);
+            ends[w] = new TopK(k);
+            bounds[w] = new TopK(k);
+            counts[w] = 0;
+        }
+        for (int i = 0; i < templates.size(); i++) {
+            int w = templates.wordId(i);
+            wordTemplates[w][counts[w]++] = i;
+        }
+        candidates = new TopK(decoder.mMaxCandidates);
+        rowMins = new double[templates.size()];
+        abandoned = new boolean[templates.size()];
+        costs = new double[1][maxLength];
+        columns = new double[templates.dim() + 1][maxLength];
+    }
+
+    /**
+     * 送入一帧 MFCC，推进尚未放弃的模板
+     *
+     * @param frame 一帧 MFCC 特征
+     */
+    void advance(double[] frame) {
+        long start = System.nanoTime();
+        input.add(frame);
+        LocalDistance.Sequence sequence = LocalDistance.Sequence.of(new double[][]{frame});
+        for (int t = 0; t < templates.size(); t++) {
+            if (!abandoned[t]) {
+                step(t, template(t), sequence, 0, frames == 0);
+            }
+        }
+        frames++;
+        update();
+        if (abandon()) {
+            update();
+        }
+        if (null == earlyResult) {
+            checkEarlyDecision();
+        }
+        dtwNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * 把模板 t 解码到 columns 中，下一次调用时被覆盖
+     */
+    private LocalDistance.Sequence template(int t) {
+        templates.decode(t, columns);
+        return new LocalDistance.Sequence(columns, templates.length(t), templates.dim());
+    }
+
+    /**
+     * 用输入序列的第 i 帧推进模板 t 的一行
+     *
+     * @param template 解码后的模板 t
+     * @param first    是否是第一帧
+     */
+    private void step(int t, LocalDistance.Sequence template, LocalDistance.Sequence input, int i, boolean first) {
+        decoder.mDtw.localDistance().tile(input, i, i + 1, template, 0, template.length, costs);
+        double[] cost = costs[0];
+        double[] p = prev[t];
+        double[] c = curr[t];
+        double rowMin;
+        if (first) {
+            // 第一行只能从左边转移过来
+            c[0] = cost[0];
+            for (int j = 1; j < template.length; j++) {
+                c[j] = c[j - 1] + cost[j];
+            }
+            rowMin = c[0];
+        } else {
+            c[0] = p[0] + cost[0];
+            rowMin = c[0];
+            for (int j = 1; j < template.length; j++) {
+                double best = Math.min(Math.min(p[j], c[j - 1]), p[j - 1]);
+                c[j] = cost[j] + best;
+                rowMin = Math.min(rowMin, c[j]);
+            }
+        }
+        rowMins[t] = rowMin;
+        prev[t] = c;
+        curr[t] = p;
+    }
+
+    /**
+     * 用保存的输入帧从头计算被放弃的模板，使其恢复到与其他模板相同的进度
+     */
+    private void replay(List<Integer> indices) {
+        LocalDistance.Sequence sequence = LocalDistance.Sequence.of(input.toArray(new double[0][]));
+        for (int t : indices) {
+            LocalDistance.Sequence template = template(t);
+            for (int i = 0; i < frames; i++) {
+                step(t, template, sequence, i, i == 0);
+            }
+            abandoned[t] = false;
+        }
+    }
+
+    /**
+     * 在说话过程中是否已经可以确定结果
+     *
+     * @return 提前确定的结果，尚不能确定时返回 null
+     */
+    String earlyResult() {
+        return earlyResult;
+    }
+
+    /**
+     * 说话结束，根据每个模板最后一格的距离给出识别结果
+     * <p>
+     * 冻结的模板先以其下界参与打分；下界不超过某个候选词第 K 好距离的冻结模板可能改变该词的得分，补算后重新排序，
+     * 直到候选词的得分都由真实距离构成。mDtw 带全局约束或使用多分辨率模式时，改由 SimpleDec 以这些距离为下界重新打分。
+     *
+     * @return 识别结果，拒识时返回 null
+     */
+    String finish() {
+        if (frames == 0) {
+            return null;
+        }
+        String ret;
+        if (decoder.mDtw.constraint() != Dtw.Constraint.NONE || decoder.mDtw.isFast()) {
+            double[] lowerBounds = new double[templates.size()];
+            for (int t = 0; t < templates.size(); t++) {
+                lowerBounds[t] = abandoned[t] ? rowMins[t] : endDistance(t);
+            }
+            SimpleDec.Recognition recognition = decoder.evaluate(model, input.toArray(new double[0][]), lowerBounds);
+            recognition.dtwNanos += dtwNanos;
+            recognition.record();
+            ret = recognition.word;
+        } else {
+            long start = System.nanoTime();
+            List<SimpleDec.Score> results;
+            while (true) {
+                results = scores();
+                List<Integer> stale = new ArrayList<>();
+                for (SimpleDec.Score score : results) {
+                    double bound = score.bound();
+                    for (int t : wordTemplates[templates.words().indexOf(score.word)]) {
+                        if (abandoned[t] && rowMins[t] <= bound) {
+                            stale.add(t);
+                        }
+                    }
+                }
+                if (stale.isEmpty()) {
+                    break;
+                }
+                replay(stale);
+            }
+            AsrMetrics.get().dtw.record(dtwNanos + System.nanoTime() - start);
+            ret = decoder.decide(results);
+        }
+        if (null != earlyResult && !earlyResult.equals(ret)) {
+            AsrMetrics.get().earlyMismatches.increment();
+        }
+        return ret;
+    }
+
+    /**
+     * 各词当前的得分，被放弃的模板以其下界代替，取最好的 mMaxCandidates 个
+     */
+    private List<SimpleDec.Score> scores() {
+        List<SimpleDec.Score> results = new ArrayList<>();
+        for (int w = 0; w < wordTemplates.length; w++) {
+            int[] indices = wordTemplates[w];
+            if (indices.length == 0) {
+                continue;
+            }
+            SimpleDec.Score score = decoder.new Score(templates.words().get(w), lowerBound(w), indices.length);
+            for (int t : indices) {
+                score.offer(abandoned[t] ? rowMins[t] : endDistance(t));
+            }
+            results.add(score);
+        }
+        return results.stream().sorted().limit(decoder.mMaxCandidates).collect(Collectors.toList());
+    }
+
+    /**
+     * 若输入到此结束，该模板的DTW距离
+     */
+    private double endDistance(int t) {
+        double[] row = prev[t];
+        return row[row.length - 1];
+    }
+
+    /**
+     * 按各模板当前的进度重新统计 ends 和 bounds
+     */
+    private void update() {
+        for (int w = 0; w < wordTemplates.length; w++) {
+            ends[w].clear();
+            bounds[w].clear();
+            for (int t : wordTemplates[w]) {
+                bounds[w].offer(rowMins[t]);
+                if (!abandoned[t]) {
+                    ends[w].offer(endDistance(t));
+                }
+            }
+        }
+    }
+
+    /**
+     * 词的得分下界：各模板下界中最小的 K 个的平均值
+     */
+    private double lowerBound(int w) {
+        return bounds[w].sum() / bounds[w].size();
+    }
+
+    /**
+     * 词的当前得分：假设输入到此结束时，最好的 K 个未放弃模板距离的平均值；模板都已放弃时为正无穷
+     */
+    private double currentScore(int w) {
+        return ends[w].size() == 0 ? Double.POSITIVE_INFINITY : ends[w].sum() / ends[w].size();
+    }
+
+    /**
+     * 只取最好的 K 个模板的词，放弃行最小值已超过该词当前第 K 好距离 mAbandonMargin 倍的模板：输入到此结束时，该词已有 K 个模板完成的距离比它好得多；
+     * 对所有模板取平均的词，得分下界已超过第 mMaxCandidates 好的词当前得分 mAbandonMargin 倍时放弃整个词
+     *
+     * @return 是否放弃了模板
+     */
+    private boolean abandon() {
+        candidates.clear();
+        for (int w = 0; w < wordTemplates.length; w++) {
+            if (wordTemplates[w].length > 0) {
+                candidates.offer(currentScore(w));
+            }
+        }
+        double cutoff = candidates.size() < candidates.capacity() ? Double.POSITIVE_INFINITY : candidates.max();
+        boolean changed = false;
+        for (int w = 0; w < wordTemplates.length; w++) {
+            int[] indices = wordTemplates[w];
+            if (indices.length == 0) {
+                continue;
+            }
+            double bound;
+            if (ends[w].capacity() < indices.length) {
+                if (ends[w].size() < ends[w].capacity()) {
+                    continue;
+                }
+                bound = ends[w].max() * mAbandonMargin;
+            } else if (ends[w].size() > 0 && lowerBound(w) > cutoff * mAbandonMargin) {
+                bound = Double.NEGATIVE_INFINITY;
+            } else {
+                continue;
+            }
+            for (int t : indices) {
+                if (!abandoned[t] && rowMins[t] > bound) {
+                    abandoned[t] = true;
+                    changed = true;
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void checkEarlyDecision() {
+        int leader = -1;
+        double leaderScore = Double.POSITIVE_INFINITY;
+        for (int w = 0; w < wordTemplates.length; w++) {
+            double score = currentScore(w);
+            if (score < leaderScore) {
+                leaderScore = score;
+                leader = w;
+            }
+        }
+        if (leader < 0) {
+            return;
+        }
+
+        // 得分下界已远超领先词的词不可能再胜出
+        for (int w = 0; w < wordTemplates.length; w++) {
+            if (w != leader && wordTemplates[w].length > 0 && lowerBound(w) <= leaderScore * mEarlyMargin) {
+                return;
+            }
+        }
+
+        int minLength = Integer.MAX_VALUE;
+        for (int t : wordTemplates[leader]) {
+            minLength = Math.min(minLength, prev[t].length);
+        }
+        if (frames < minLength * mEarlyMinLength) {
+            return;
+        }
+
+        // 领先词按当前得分、其他词按得分下界参与判决和拒识
+        List<SimpleDec.Score> results = new ArrayList<>();
+        for (int w = 0; w < wordTemplates.length; w++) {
+            if (wordTemplates[w].length == 0) {
+                continue;
+            }
+            SimpleDec.Score score = decoder.new Score(templates.words().get(w), lowerBound(w), wordTemplates[w].length);
+            score.offer(w == leader ? leaderScore : score.lowerBound);
+            results.add(score);
+        }
+        results = results.stream().sorted().limit(decoder.mMaxCandidates).collect(Collectors.toList());
+        SimpleDec.Recognition recognition = new SimpleDec.Recognition();
+        decoder.decide(results, recognition);
+        if (templates.words().get(leader).equals(recognition.word)) {
+            earlyResult = recognition.word;
+        }
+    }
+
+    /**
+     * 一组数中最小的若干个，用最大堆保存
+     */
+    private static final class TopK {
+        private final double[] heap;
+        private int size;
+
+        TopK(int capacity) {
+            heap = new double[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void offer(double value) {
+            if (size < heap.length) {
+                int i = size++;
+                while (i > 0 && heap[(i - 1) / 2] < value) {
+                    heap[i] = heap[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+                heap[i] = value;
+            } else if (size > 0 && value < heap[0]) {
+                int i = 0;
+                while (true) {
+                    int child = 2 * i + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && heap[child + 1] > heap[child]) {
+                        child++;
+                    }
+                    if (heap[child] <= value) {
+                        break;
+                    }
+                    heap[i] = heap[child];
+                    i = child;
+                }
+                heap[i] = value;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return heap.length;
+        }
+
+        double max() {
+            return heap[0];
+        }
+
+        double sum() {
+            double sum = 0;
+            for (int i = 0; i < size; i++) {
+                sum += heap[i];
+            }
+            return sum;
+        }
+    }
+}
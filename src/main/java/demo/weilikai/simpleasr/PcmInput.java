@@ -0,0 +1,136 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * 按块读取 16 位小端 pcm 或 WAV 文件，最后一块不足时补零，与 MfccFeature.sample2Group 一致
+ */
+final class PcmInput implements Closeable {
+
+    static final int CHUNK_SAMPLES = MFCC.FRAME_SIZE; // 与麦克风相同，每块 25ms
+
+    private final DataInputStream in;
+    private final byte[] bytes = new byte[CHUNK_SAMPLES * 2];
+    private long remaining; // 剩余的音频字节数
+    private long samples;
+
+    private PcmInput(DataInputStream in, long dataBytes) {
+        this.in = in;
+        this.remaining = dataBytes;
+    }
+
+    static PcmInput open(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()), 64 * 1024));
+        try {
+            if (file.getName().endsWith(".wav")) {
+                return new PcmInput(in, readWavHeader(in));
+            }
+            return new PcmInput(in, file.length());
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 跳过 WAV 文件头，只接受 16kHz、单声道、16 位 PCM
+     *
+     * @return data 块的字节数
+     */
+    private static long readWavHeader(DataInputStream in) throws IOException {
+        byte[] id = new byte[4];
+        in.readFully(id);
+        if (!"RIFF".equals(new String(id, StandardCharsets.US_ASCII))) {
+            throw new IOException("不是 WAV 文件");
+        }
+        readIntLE(in);
+        in.readFully(id);
+        if (!"WAVE".equals(new String(id, StandardCharsets.US_ASCII))) {
+            throw new IOException("不是 WAV 文件");
+        }
+        while (true) {
+            in.readFully(id);
+            long size = readIntLE(in) & 0xffffffffL;
+            String chunk = new String(id, StandardCharsets.US_ASCII);
+            if ("data".equals(chunk)) {
+                return size;
+            }
+            if ("fmt ".equals(chunk)) {
+                int format = readShortLE(in);
+                int channels = readShortLE(in);
+                int sampleRate = readIntLE(in);
+                readIntLE(in); // 字节率
+                readShortLE(in); // 块对齐
+                int bits = readShortLE(in);
+                if (format != 1 || channels != 1 || sampleRate != MFCC.SAMPLE_RATE || bits != 16) {
+                    throw new IOException("只支持 16kHz、单声道、16 位的 PCM WAV 文件");
+                }
+                size -= 16;
+            }
+            skip(in, size + (size & 1)); // 块按偶数字节对齐
+        }
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readShortLE(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+    }
+
+    private static void skip(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * @return 下一块 25ms 的音频，文件结束时返回 null
+     */
+    short[] next() throws IOException {
+        int length = (int) Math.min(bytes.length, remaining & ~1L);
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        read &= ~1;
+        remaining = read < length ? 0 : remaining - read;
+        if (read == 0) {
+            return null;
+        }
+        short[] chunk = new short[CHUNK_SAMPLES];
+        for (int i = 0; i < read / 2; i++) {
+            chunk[i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+        }
+        samples += read / 2;
+        return chunk;
+    }
+
+    long samples() {
+        return samples;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
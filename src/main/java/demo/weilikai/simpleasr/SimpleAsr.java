@@ -2,103 +2,269 @@ package demo.weilikai.simpleasr;
 
 import demo.weilikai.simpleasr.mfcc.MFCC;
 
-import java.io.DataOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SimpleAsr {
 
-    int sessionIndex = 1;
+    AtomicInteger sessionIndex = new AtomicInteger(1);
     SimpleDec decoder = new SimpleDec();
+    boolean onlineDecoding = false; // 是否在说话过程中逐帧推进 DTW；mDtw 带全局约束时说话结束后仍要计算带约束的 DTW，在线推进只换来提前结果，默认关闭
+    boolean recordSessions = true; // 是否把每句话的音频保存下来，关闭时不创建录音线程
+    File recordDir = new File("."); // 录音文件所在的目录
+    boolean recordWav = false; // 录音是否带 WAV 文件头，否则为裸 pcm
+    long recordMaxBytes = 0; // 单个录音文件的最大字节数，超过后切换到新文件，0 表示不限
+    long recordMaxMillis = 0; // 单个录音文件的最长时长（毫秒），0 表示不限
+    private AudioRecorder recorder; // 第一次需要录音时创建
+    int decodeSilenceFrames = ModuleLoader.TRAILING_SILENCE_FRAMES; // 离线解码只保留说话中首次连续无语音的这么多帧，之后 VAD 等待说话结束的静音不参与识别；与模板的切分相同，修改后两边的结尾静音长度不再一致；为 0 或不小于 SimpleVad.END_FRAMES 时解码全部帧
+    boolean speculate = true; // 离线解码时，连续无语音达到 decodeSilenceFrames 帧就在后台推测解码
+    Set<String> wakeWords = Collections.emptySet(); // 唤醒词，非空时在连续音频上做关键词检出，不依赖 VAD 切分
+    private volatile KeywordSpotter.Keywords keywords; // 各音频流共用的唤醒词模板，模型、mDtw 或唤醒词变化后第一次用到时重建
 
-    public void start() throws IOException {
-        SimpleVad vad = new SimpleVad();
-        Queue<short[]> queues = new LinkedList<>();
+    int frameQueueCapacity = 256; // 采集到 VAD 之间的帧队列容量，约 6.4 秒音频
+    int sessionQueueCapacity = 8; // 等待解码的句子队列容量
 
+    /**
+     * 启动识别：采集、VAD/特征提取和解码分别运行在独立的线程上
+     *
+     * @throws IOException 麦克风或会话录音读写异常
+     */
+    public void start() throws IOException {
         try (SimpleMic sr = new SimpleMic()) {
-            SimpleAsr.AsrSession asrSession = null;
-            while (true) {
-                short[] signals = sr.read();
-
-                int vadState = vad.detectVoiceActivityFSM(signals);
-                switch (vadState) {
-                    case 0:
-                        asrSession = null;
-                        queues.offer(signals);
-                        while (queues.size() > 10) {
-                            queues.poll();
-                        }
-                        break;
-                    case 1:
-                        if (null == asrSession) {
-                            asrSession = this.session();
-
-                            while (queues.size() > 0) {
-                                asrSession.feed(queues.poll());
-                            }
-                        }
-                        asrSession.feed(signals);
-                        break;
-                    case 2:
-                        asrSession.detect();
-                        break;
-                    default:
-                        break;
-                }
+            new AsrPipeline(this, sr, frameQueueCapacity, sessionQueueCapacity).run();
+        } finally {
+            closeRecorder();
+        }
+    }
+
+    /**
+     * @return 会话录音使用的后台写入器，关闭录音时返回 null
+     */
+    synchronized AudioRecorder recorder() {
+        if (recordSessions && null == recorder) {
+            recorder = new AudioRecorder(recordDir, recordWav, recordMaxBytes, recordMaxMillis);
+        }
+        return recordSessions ? recorder : null;
+    }
+
+    /**
+     * 写完尚未落盘的会话录音并停止录音线程
+     *
+     * @throws IOException 关闭录音文件异常
+     */
+    synchronized void closeRecorder() throws IOException {
+        if (null != recorder) {
+            recorder.close();
+            if (recorder.dropped() > 0) {
+                AsrLog.warning("录音队列已满，丢弃的音频帧数：" + recorder.dropped());
             }
+            recorder = null;
         }
     }
 
     public AsrSession session() {
         String datetime = java.time.LocalDateTime.now().format(java.time.format.DateTimeFormatter.ofPattern("yyMMdd_HHmm_ss_SSS"));
-        String sessionId = String.format("s%08x_%06d_%s", hashCode(), sessionIndex++, datetime);
+        String sessionId = String.format("s%08x_%06d_%s", hashCode(), sessionIndex.getAndIncrement(), datetime);
         System.out.println("new session: " + sessionId);
         return new AsrSession(sessionId);
     }
 
+    /**
+     * 为一路音频流创建唤醒词检出器
+     *
+     * @return 检出器，没有配置唤醒词时返回 null
+     */
+    KeywordSpotter spotter() {
+        if (wakeWords.isEmpty()) {
+            return null;
+        }
+        TemplateStore templates = decoder.templates();
+        KeywordSpotter.Keywords keywords = this.keywords;
+        if (null == keywords || !keywords.builtFrom(templates, decoder.mDtw, wakeWords)) {
+            keywords = new KeywordSpotter.Keywords(templates, decoder.mDtw, wakeWords);
+            this.keywords = keywords;
+        }
+        return new KeywordSpotter(keywords);
+    }
+
     protected void init(String modelFile) throws IOException {
         decoder.loadModel(modelFile);
     }
 
+    /**
+     * 在识别运行中新增一个词或为已有的词追加模板，不中断识别：正在解码的句子仍使用旧的词表，之后的句子使用新的词表
+     * <p>
+     * 已经建立的音频流中的唤醒词检出不受影响。
+     *
+     * @param word  词
+     * @param audio 该词的录音（16kHz、16 位小端 pcm），可以包含多句话，每句话作为一个模板
+     * @return 新增的模板数
+     * @throws IOException 录音读取异常
+     */
+    public int enroll(String word, File audio) throws IOException {
+        return decoder.enroll(word, audio);
+    }
+
+    /**
+     * 在识别运行中去掉一个词，不中断识别
+     *
+     * @param word 要去掉的词
+     * @return 该词是否存在
+     */
+    public boolean removeWord(String word) {
+        return decoder.removeWord(word);
+    }
+
+    /**
+     * 单句话的最大时长（毫秒），超出部分不再提取特征
+     */
+    public static final int MAX_UTTERANCE_MS = 10 * 1000;
+    static final int MAX_FEATURE_FRAMES = MAX_UTTERANCE_MS * MFCC.SAMPLE_RATE / 1000 / MFCC.FRAME_SHIFT;
+    private static final Executor SPECULATION_EXECUTOR = ForkJoinPool.commonPool(); // 推测解码使用的线程池
+
     class AsrSession {
 
-        DataOutputStream outfile;
+        final String sessionId;
+        final AudioRecorder.Recording recording;
+        private boolean closed = false;
 
-        List<short[]> frames = new ArrayList<>();
+        double[][] features = new double[MAX_FEATURE_FRAMES][];
+        int featureCount = 0;
+        boolean truncated = false; // 已超过最大长度，只提示一次
+        OnlineDec online = onlineDecoding ? decoder.online() : null;
+        boolean earlyReported = false;
+        String earlyResult; // 已提前确定但尚未被取走的结果
+        int decodeFrames = -1; // 离线解码的帧数，-1 表示解码全部帧
+        CompletableFuture<SimpleDec.Recognition> speculation; // 后台对前 decodeFrames 帧的推测解码
 
         public AsrSession(String sessionId) {
-            try {
-                outfile = new DataOutputStream(new FileOutputStream(sessionId + ".pcm"));
-            } catch (FileNotFoundException e) {
-                throw new RuntimeException(e);
+            this.sessionId = sessionId;
+            AsrMetrics.get().activeSessions.incrementAndGet();
+            AudioRecorder recorder = recorder();
+            recording = null != recorder ? recorder.open(sessionId) : null;
+        }
+
+        /**
+         * 写入会话录音，只把这一帧交给录音线程，未开启录音时什么也不做
+         */
+        public void record(short[] signals) {
+            if (null != recording) {
+                recording.write(signals);
             }
         }
 
-        public void feed(short[] signals) throws IOException {
-            for (short signal : signals) {
-                outfile.writeByte(signal >> 0);
-                outfile.writeByte(signal >> 8);
+        /**
+         * 送入前端已经提取好的一帧 MFCC
+         */
+        public void feed(double[] feature) {
+            if (featureCount >= MAX_FEATURE_FRAMES) {
+                if (!truncated) {
+                    truncated = true;
+                    AsrLog.warning("语音超过 " + MAX_UTTERANCE_MS + " 毫秒，之后的部分将被忽略");
+                }
+                return;
+            }
+            features[featureCount++] = feature;
+            if (null != online) {
+                online.advance(feature);
+                if (!earlyReported && null != online.earlyResult()) {
+                    earlyReported = true;
+                    earlyResult = online.earlyResult();
+                    System.out.println("提前识别结果：" + earlyResult);
+                }
             }
-            frames.add(signals);
         }
 
-        public void detect() throws IOException {
-            outfile.close();
-            System.out.println("detecting");
-            MFCC m = new MFCC();
-            List<double[]> mfccs = new ArrayList<>();
-            for (short[] f : frames) {
-                mfccs.addAll(m.mfccWithStride(f, 10));
+        /**
+         * 取走提前确定的识别结果，每句话最多返回一次
+         *
+         * @return 提前确定的结果，没有时返回 null
+         */
+        public String takeEarlyResult() {
+            String ret = earlyResult;
+            earlyResult = null;
+            return ret;
+        }
+
+        /**
+         * 结束录音，不再计入活跃的句子，可以重复调用
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            AsrMetrics.get().activeSessions.decrementAndGet();
+            if (null != recording) {
+                recording.close();
             }
-            double[][] inputMFCC = mfccs.toArray(new double[0][]);
+        }
 
-            String ret = decoder.recognize(inputMFCC);
+        /**
+         * 说话中已连续 decodeSilenceFrames 帧无语音时调用：离线解码只解码到这里为止，之后 VAD 等待说话结束的静音帧不参与识别
+         * <p>
+         * 开启 speculate 时在后台推测解码这些帧。推测解码的输入就是说话结束时要解码的输入，不需要任何补齐：
+         * 若 VAD 判定说话结束前没有再出现语音，detect() 直接采用推测结果，解码延迟隐藏在等待静音的时间里；
+         * 又出现语音时 resume() 作废这次推测。在线解码时说话结束后只需读出结果，不做推测。
+         */
+        void pause() {
+            resume();
+            if (null != online || 0 == featureCount) {
+                return;
+            }
+            decodeFrames = featureCount;
+            if (speculate) {
+                double[][] input = Arrays.copyOf(features, featureCount);
+                speculation = CompletableFuture.supplyAsync(() -> decoder.evaluate(input), SPECULATION_EXECUTOR);
+            }
+        }
+
+        /**
+         * 又出现语音，之前的停顿不是句尾：放弃推测解码的结果，说话结束时重新解码；已经开始的计算仍会完成，但结果不再使用，也不计入指标
+         */
+        void resume() {
+            decodeFrames = -1;
+            if (null != speculation) {
+                speculation.cancel(false);
+                speculation = null;
+            }
+        }
+
+        public String detect() throws IOException {
+            close();
+            System.out.println("detecting");
+            AsrEvents events = AsrEvents.get();
+            Object event = events.beginDecode();
+            long start = System.nanoTime();
+            String ret;
+            boolean speculative = false;
+            if (null != online) {
+                ret = online.finish();
+            } else if (null != speculation) {
+                // 推测之后只有静音，推测解码的输入与此时要解码的输入相同，提交推测结果
+                SimpleDec.Recognition recognition = speculation.join();
+                recognition.record();
+                ret = recognition.word;
+                speculative = true;
+            } else {
+                ret = decoder.recognize(Arrays.copyOf(features, decodeFrames >= 0 ? decodeFrames : featureCount));
+            }
+            AsrMetrics metrics = AsrMetrics.get();
+            metrics.decode.recordSince(start);
+            metrics.utterances.increment();
+            if (null == ret) {
+                metrics.rejections.increment();
+            }
+            events.endDecode(event, sessionId, featureCount, null != online, speculative, ret);
             System.out.println("识别结果：" + ret);
+            return ret;
         }
     }
 }
@@ -1,203 +1,811 @@
 package demo.weilikai.simpleasr;
 
-import demo.weilikai.simpleasr.util.MfccFeature;
+import demo.weilikai.simpleasr.mfcc.MFCC;
 
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 
 class SimpleDec {
 
-    Map<Integer, String> mId2Word = new HashMap<>();
-    List<double[][]> mModelFeatures = new ArrayList<>();
+    TemplateStore.Encoding mEncoding = TemplateStore.Encoding.FLOAT64; // 加载模型时模板的存储精度
+    boolean mOffHeap = false; // 加载模型时模板是否存放在堆外
+    int mTemplateBudget = 0; // 从录音目录构建模型时每个词最多保留的模板数，0 表示全部保留；精简后每个模板代表一类录音，mTopK 随之设为 1
+    TemplateReducer.Method mReduction = TemplateReducer.Method.MEDOIDS; // 模板数超出 mTemplateBudget 时的精简方式
+    AudioRecorder mRecorder = null; // 非空时把从录音目录切分出的每句话交给它录音，用于检查 VAD 的切分
+    File mFeatureCache = null; // 从录音目录构建模型时缓存特征的目录，只有新增或修改过的录音需要重新提取；为 null 或设置了 mRecorder 时不缓存
 
+    int mNearest = 0; // 大于 0 且有索引时，只用距离最近的 mNearest 个模板给各词打分；mTopK 不小于某个词的模板数时不起作用
+
+    Dtw mDtw = new Dtw(Dtw.Constraint.SAKOE_CHIBA, 0.5); // 半径 0.5 时自带录音的模板两两之间的距离与不加约束时完全相同；模板较长的模型可改用 mDtw.withFastRadius(1) 多分辨率计算
+    int mTopK = Integer.MAX_VALUE; // 每个词参与打分的模板个数，默认与最初的实现一样对该词所有模板的距离取平均
+    int mMaxCandidates = 5; // 参与判决和拒识的候选词个数
+    Executor mExecutor = ForkJoinPool.commonPool(); // 模板打分和从录音目录提取特征使用的线程池，为 null 时只在调用线程上计算
+    int mParallelism = Runtime.getRuntime().availableProcessors(); // 模板打分和提取特征的并行线程数
+
+    // 当前的模型快照，修改词表时整体替换；识别只读取一次，不加锁
+    private volatile TemplateModel mModel = TemplateModel.of(TemplateStore.empty(MFCC.NUM_COEFFICIENTS), mDtw, null);
+
+    /**
+     * 加载模型：可以是预编译的模型文件，也可以是存放原始 .merged 录音的目录
+     * <p>
+     * 从录音目录加载时各文件并行切分和提取特征，模板的顺序仍与目录列出文件的顺序一致；设置了 mFeatureCache 时内容未变的录音直接读取缓存。
+     *
+     * @param modelFile 模型文件或目录
+     * @throws IOException 文件读取异常
+     */
     void loadModel(String modelFile) throws IOException {
         System.out.println("正在加载模型资源...");
         File modelDir = new File(modelFile);
+        if (modelDir.isFile()) {
+            loadCompiledModel(modelDir);
+            return;
+        }
 
+        File[] files = Objects.requireNonNull(modelDir.listFiles());
+        // 切分录音时需要原始音频，不使用缓存
+        FeatureCache cache = null != mFeatureCache && null == mRecorder ? new FeatureCache(mFeatureCache) : null;
+        List<List<double[][]>> fileFeatures = extractFeatures(files, cache);
         ArrayList<String> words = new ArrayList<>();
-        for (File file : Objects.requireNonNull(modelDir.listFiles())) {
-            String word = file.getName().replaceAll("\\..*$", "");
-            List<double[][]> features = ModuleLoader.extractFeaturesFromAudioFile(file);
+        List<Integer> wordIds = new ArrayList<>();
+        List<double[][]> templates = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            String word = files[i].getName().replaceAll("\\..*$", "");
+            List<double[][]> features = fileFeatures.get(i);
             for (double[][] feature : features) {
-                mModelFeatures.add(feature);
-                mId2Word.put(mId2Word.size(), word);
+                templates.add(feature);
+                wordIds.add(words.size());
             }
             System.out.println("  " + word + ", 特征数：" + features.size());
             words.add(word);
         }
+        if (null != cache) {
+            AsrLog.info("特征缓存：命中 " + cache.hits() + " 个文件，重新提取 " + cache.misses() + " 个");
+        }
+        TemplateStore store = TemplateStore.of(words, wordIds.stream().mapToInt(Integer::intValue).toArray(), templates,
+                MFCC.NUM_COEFFICIENTS, TemplateStore.Encoding.FLOAT64, false);
+        if (mTemplateBudget > 0) {
+            AsrLog.info("精简模板（" + mReduction + "），每个词最多 " + mTemplateBudget + " 个：");
+            store = new TemplateReducer(mDtw, mReduction, mTemplateBudget).reduce(store);
+            mTopK = 1;
+            AsrLog.info("精简后每个词按最近的 1 个模板打分");
+        }
+        addTemplates(store, null);
         System.out.println("加载完毕, 支持说法：" + words);
     }
 
+    /**
+     * 在 mExecutor 的 mParallelism 个线程上并行提取各录音文件的特征
+     *
+     * @param cache 特征缓存，为 null 时总是重新提取
+     * @return 与 files 一一对应的每句话的特征
+     * @throws IOException 任一文件读取失败
+     */
+    private List<List<double[][]>> extractFeatures(File[] files, FeatureCache cache) throws IOException {
+        List<List<double[][]>> ret = new ArrayList<>(Collections.nCopies(files.length, null));
+        AtomicReference<IOException> error = new AtomicReference<>();
+        runParallel(files.length, i -> {
+            try {
+                ret.set(i, null != cache ? cache.extract(files[i])
+                        : ModuleLoader.extractFeaturesFromAudioFile(files[i], mRecorder));
+            } catch (IOException e) {
+                error.compareAndSet(null, e);
+            }
+        });
+        if (null != error.get()) {
+            throw error.get();
+        }
+        return ret;
+    }
+
+    private void loadCompiledModel(File file) throws IOException {
+        CompiledModel model = CompiledModel.load(file);
+        if (model.topK > 0) {
+            mTopK = model.topK;
+            AsrLog.info("模型指定每个词按最近的 " + mTopK + " 个模板打分");
+        }
+        addTemplates(model.store, model.index);
+        System.out.println("加载完毕, 模板数：" + model.store.size() + ", 支持说法：" + model.store.words());
+    }
 
     /**
-     * 从音频文件中提取特征
+     * 把新模板追加到已加载的模板之后；第一次加载时按 mEncoding 和 mOffHeap 打包，之后沿用已有的精度和存放位置
+     * <p>
+     * 第一次加载时精度相同、存放位置也满足要求（映射的模型文件本身就在堆外）的模板直接使用，不复制特征数据；
+     * 识别时逐个模板临时解码，堆上常驻的只有量化的包络。
      *
-     * @param file 音频文件
-     * @return 返回每句话的 MFCC 特征，包含多个 MFCC 特征数组
-     * @throws IOException 文件读取异常
+     * @param index 第一次加载时使用的近邻索引，可以为 null；之后的追加只为新模板补上到已有枢轴的距离
      */
-    public static List<double[][]> extractFeaturesFromAudioFile(File file) throws IOException {
-        List<double[][]> mulFileFeatures = new ArrayList<>();
-        SimpleVad vad = new SimpleVad();
-        short[] samples = MfccFeature.loadSamples(file);
-        List<short[]> frames = MfccFeature.sample2Group(samples, 400);
-        Queue<short[]> queues = new LinkedList<>();
-        int vadConfidence = 0;
-        int sentenceIndex = 1;
-        List<short[]> samplesForSingleFile = null;
-        for (short[] signals : frames) {
-            int vadState = vad.detectVoiceActivityFSM(signals);
-            switch (vadState) {
-                case 0:
-                    queues.offer(signals);
-                    while (queues.size() > 10) {
-                        queues.poll();
-                    }
-                    break;
-                case 1:
-                    if (null == samplesForSingleFile) {
-                        samplesForSingleFile = new ArrayList<>();
-                        while (queues.size() > 0) {
-                            samplesForSingleFile.add(queues.poll());
-                        }
-                    }
-                    samplesForSingleFile.add(signals);
-                    break;
-                case 2:
-                    try (DataOutputStream outfile = new DataOutputStream(new FileOutputStream("output/" + file.getName() + "" + sentenceIndex++ + ".pcm"))) {
-                        for (short[] shorts : samplesForSingleFile) {
-                            for (short signal : shorts) {
-                                outfile.writeByte(signal >> 0);
-                                outfile.writeByte(signal >> 8);
-                            }
-                        }
-                    }
+    private synchronized void addTemplates(TemplateStore added, TemplateIndex index) {
+        TemplateModel current = model();
+        TemplateModel next;
+        if (current.store.size() != 0) {
+            next = current.append(added);
+        } else if (added.encoding() == mEncoding && (added.isDirect() || !mOffHeap)) {
+            next = TemplateModel.of(added, mDtw, index);
+        } else {
+            next = TemplateModel.of(added.encode(mEncoding, mOffHeap), mDtw, index);
+        }
+        checkIndex(next);
+        swap(next);
+        AsrLog.info(String.format("模板存储：%s%s, 特征数据 %d 字节", next.store.encoding(),
+                next.store.isDirect() ? "（堆外）" : "", next.store.valueBytes()));
+    }
 
-                    mulFileFeatures.add(MfccFeature.extractFeatures(samplesForSingleFile).toArray(new double[0][]));
-                    samplesForSingleFile = null;
-                    break;
-                default:
-                    break;
-            }
+    /**
+     * 新增一个词
+     *
+     * @param word      新词
+     * @param templates 该词的模板，每个元素是一句话的 MFCC 序列
+     * @throws IllegalArgumentException 词已存在，或没有模板
+     */
+    synchronized void addWord(String word, List<double[][]> templates) {
+        if (model().store.words().contains(word)) {
+            throw new IllegalArgumentException("词已存在：" + word);
         }
-        return mulFileFeatures;
+        appendTemplates(word, templates);
     }
+
     /**
-     * 计算两个向量之间的欧几里得距离
+     * 为已有的词追加模板
      *
-     * @param a 向量a（x1,y1,z1）
-     * @param b 向量b (x2,y2,z2)
-     * @return 向量a和向量b之间的欧几里得距离
+     * @param word      已有的词
+     * @param templates 追加的模板，每个元素是一句话的 MFCC 序列
+     * @throws IllegalArgumentException 词不存在，或没有模板
      */
-    private double calculateEuclideanDistance(double[] a, double[] b) {
-        double distance = 0;
-        for (int i = 0; i < a.length; i++) {
-            distance += (a[i] - b[i]) * (a[i] - b[i]); // 计算两个向量在每个维度上的差值的平方
+    synchronized void addTemplates(String word, List<double[][]> templates) {
+        if (!model().store.words().contains(word)) {
+            throw new IllegalArgumentException("词不存在：" + word);
         }
-        return Math.sqrt(distance); // 返回差值平方和的平方根
+        appendTemplates(word, templates);
     }
 
     /**
-     * 计算两个MFCC序列之间的DTW距离
+     * 从录音中切分出每句话作为模板，新增一个词或为已有的词追加模板
+     * <p>
+     * 特征提取在调用线程上完成，不持有锁，只有替换快照时才与其他修改互斥；识别始终不受影响。
      *
-     * @param mfcc1 第一个MFCC序列
-     * @param mfcc2 第二个MFCC序列
-     * @return 两个MFCC序列之间的DTW距离
+     * @param word  词
+     * @param audio 16kHz、16 位小端的 pcm 录音，可以包含多句话
+     * @return 从录音中切分出的模板数
+     * @throws IOException 录音读取异常
      */
-    private double dtwDistance(double[][] mfcc1, double[][] mfcc2) {
-        int len1 = mfcc1.length; // 获取mfcc1序列的长度
-        int len2 = mfcc2.length; // 获取mfcc2序列的长度
-        double[][] dtw = new double[len1][len2]; // 初始化DTW矩阵
+    int enroll(String word, File audio) throws IOException {
+        List<double[][]> templates = ModuleLoader.extractFeaturesFromAudioFile(audio);
+        synchronized (this) {
+            if (model().store.words().contains(word)) {
+                addTemplates(word, templates);
+            } else {
+                addWord(word, templates);
+            }
+        }
+        return templates.size();
+    }
 
-        // 初始化DTW矩阵的第一个元素，它等于mfcc1和mfcc2的第一个MFCC向量之间的欧几里得距离
-        dtw[0][0] = calculateEuclideanDistance(mfcc1[0], mfcc2[0]);
+    private void appendTemplates(String word, List<double[][]> templates) {
+        if (templates.isEmpty()) {
+            throw new IllegalArgumentException("没有模板：" + word);
+        }
+        TemplateStore added = TemplateStore.of(Collections.singletonList(word), new int[templates.size()], templates,
+                model().store.dim(), TemplateStore.Encoding.FLOAT64, false);
+        swap(model().append(added));
+        AsrLog.info("已追加模板：" + word + "，" + templates.size() + " 个");
+    }
 
-        // 初始化DTW矩阵的第一列
-        for (int i = 1; i < len1; i++) {
-            dtw[i][0] = dtw[i - 1][0] + calculateEuclideanDistance(mfcc1[i], mfcc2[0]);
+    /**
+     * 去掉一个词及其所有模板
+     *
+     * @param word 要去掉的词
+     * @return 该词是否存在
+     */
+    synchronized boolean removeWord(String word) {
+        TemplateModel current = model();
+        TemplateModel next = current.without(word);
+        if (next == current) {
+            return false;
+        }
+        if (null != current.index && null == next.index) {
+            AsrLog.warning("去掉的模板中有枢轴，近邻索引失效，需要重新编译模型");
         }
+        swap(next);
+        AsrLog.info("已去掉：" + word);
+        return true;
+    }
 
-        // 初始化DTW矩阵的第一行
-        for (int j = 1; j < len2; j++) {
-            dtw[0][j] = dtw[0][j - 1] + calculateEuclideanDistance(mfcc1[0], mfcc2[j]);
+    /**
+     * 用一组新的模板整体替换当前模型，不带近邻索引
+     */
+    synchronized void replaceTemplates(TemplateStore templates) {
+        swap(TemplateModel.of(templates, mDtw, null));
+    }
+
+    /**
+     * 近邻索引的 DTW 参数与快照不一致时提示：识别时不使用该索引，直到重新建立
+     */
+    private static void checkIndex(TemplateModel model) {
+        if (null != model.index && !model.index.matches(model.dtw)) {
+            AsrLog.warning("近邻索引按 " + model.index.dtwConfig() + " 建立，与 mDtw 不一致，识别时不使用，需要重新建立索引");
         }
+    }
+
+    private synchronized void swap(TemplateModel next) {
+        mModel = next;
+        AsrMetrics.get().templateCount = next.store.size();
+    }
 
-        // 使用动态规划填充DTW矩阵的剩余部分
-        for (int i = 1; i < len1; i++) {
-            for (int j = 1; j < len2; j++) {
-                // 计算当前MFCC向量之间的欧几里得距离
-                double cost = calculateEuclideanDistance(mfcc1[i], mfcc2[j]);
-                // 当前单元格的值等于当前距离加上左上、上和左单元格中的最小值
-                dtw[i][j] = cost + Math.min(Math.min(dtw[i - 1][j], dtw[i][j - 1]), dtw[i - 1][j - 1]);
+    /**
+     * 当前的模型快照；mDtw 被替换后，第一次调用时按新的约束重新计算包络
+     *
+     * @return 模型快照，之后对词表的修改不会影响它
+     */
+    TemplateModel model() {
+        TemplateModel model = mModel;
+        if (model.dtw != mDtw) {
+            synchronized (this) {
+                model = mModel.withDtw(mDtw);
+                if (model != mModel) {
+                    checkIndex(model);
+                }
+                swap(model);
             }
         }
+        return model;
+    }
 
-        // DTW矩阵的右下角包含两个序列之间的DTW距离
-        return dtw[len1 - 1][len2 - 1];
+    /**
+     * @return 当前模型快照中的模板
+     */
+    TemplateStore templates() {
+        return model().store;
+    }
+
+    /**
+     * 将当前已加载的模板保存为预编译模型文件，mTopK 不是默认值时一并保存，加载时采用
+     *
+     * @param outFile 输出的模型文件
+     * @throws IOException 文件写入异常
+     */
+    void saveModel(String outFile) throws IOException {
+        TemplateModel model = model();
+        new CompiledModel(model.store, model.index, mTopK == Integer.MAX_VALUE ? 0 : mTopK).write(new File(outFile));
+    }
+
+    /**
+     * 为当前已加载的模板建立近邻索引，应在编译模型时调用，随模型一起保存
+     *
+     * @param pivotCount 枢轴模板个数
+     */
+    synchronized void buildIndex(int pivotCount) {
+        TemplateModel model = model();
+        TemplateIndex index = TemplateIndex.build(model.store, mDtw, pivotCount);
+        swap(model.withIndex(index));
+        AsrLog.info("近邻索引已建立，枢轴数：" + index.pivots().length);
+    }
+
+    /**
+     * 从音频文件中提取特征
+     *
+     * @param file 音频文件
+     * @return 返回每句话的 MFCC 特征，包含多个 MFCC 特征数组
+     * @throws IOException 文件读取异常
+     */
+    public static List<double[][]> extractFeaturesFromAudioFile(File file) throws IOException {
+        return ModuleLoader.extractFeaturesFromAudioFile(file);
     }
 
     /**
      * 识别给定MFCC序列与一组模板序列中的哪一个模板最匹配
+     * <p>
+     * 每个词的得分为该词最好的 mTopK 个模板距离的平均值，只有得分最好的 mMaxCandidates 个词参与最终判决和拒识。
+     * 计算完整的 DTW 之前先用 LB_Kim / LB_Keogh 求出每个模板的下界，再按下界从小到大的顺序计算：
+     * 词的得分下界超过共享上界（见 SharedBound）时整个词跳过；模板的下界或 DTW 超过该词当前第 K 好的距离时放弃该模板；
+     * 对所有模板取平均时，已算完的距离加上其余模板的下界超过共享上界乘以模板数，说明该词的平均分超过共享上界，同样放弃。
+     * 识别结束时检查被剪掉的词的下界能否确定判决，不能时完整地重新计算这些词，因此识别结果和拒识与不剪枝时完全一致。
+     * <p>
+     * 模板打分分摊到 mExecutor 的 mParallelism 个线程上，各线程共享上述上界；剪掉哪些模板与线程的调度有关，识别结果无关。
      *
      * @param inputFeatures 待识别的MFCC序列
      * @return 最匹配的模板序列名称，格式为“Word_1”、“Word_2”等
      */
     public String recognize(double[][] inputFeatures) {
-        List<double[][]> templates = mModelFeatures;
-        double[] distances = new double[templates.size()];
+        Recognition recognition = evaluate(inputFeatures);
+        recognition.record();
+        return recognition.word;
+    }
+
+    /**
+     * 与 recognize 相同，但不计入 AsrMetrics；推测解码只在结果被采用时才调用 Recognition.record
+     *
+     * @param inputFeatures 待识别的MFCC序列
+     * @return 识别结果及各阶段的耗时
+     */
+    Recognition evaluate(double[][] inputFeatures) {
+        Recognition recognition = new Recognition();
+        TemplateModel model = model();
+        TemplateStore templates = model.store;
+        List<Dtw.Envelope> envelopes = model.envelopes;
+        TemplateIndex index = model.index;
+        long start = System.nanoTime();
+        LocalDistance.Sequence input = LocalDistance.Sequence.of(inputFeatures);
+        if (null != index && mNearest > 0 && index.size() == templates.size() && index.matches(model.dtw)
+                && topKOnly(templates)) {
+            recognizeNearest(input, model, start, recognition);
+            return recognition;
+        }
+
+        // 计算每个模板的下界
+        double[] lowerBounds = new double[templates.size()];
+        runParallel(templates.size(), i ->
+                lowerBounds[i] = mDtw.lowerBound(input, envelopes.get(i), Double.POSITIVE_INFINITY));
+        score(templates, input, lowerBounds, start, recognition);
+        return recognition;
+    }
+
+    /**
+     * 与 evaluate 相同，但在给定的模型快照上打分，并以 lowerBounds 代替 LB_Kim / LB_Keogh 下界，不使用近邻索引
+     * <p>
+     * 在线解码说话结束时使用：不加约束的 DTW 距离不大于任何全局约束下的距离，可以直接作为下界。
+     *
+     * @param model         模型快照
+     * @param inputFeatures 待识别的MFCC序列
+     * @param lowerBounds   每个模板在 mDtw 下距离的下界
+     * @return 识别结果及各阶段的耗时
+     */
+    Recognition evaluate(TemplateModel model, double[][] inputFeatures, double[] lowerBounds) {
+        Recognition recognition = new Recognition();
+        long start = System.nanoTime();
+        score(model.store, LocalDistance.Sequence.of(inputFeatures), lowerBounds, start, recognition);
+        return recognition;
+    }
 
-        // 遍历所有模板序列
+    private void score(TemplateStore templates, LocalDistance.Sequence input, double[] lowerBounds, long start,
+                       Recognition recognition) {
+        // 按词分组、组内按下界排序，模板下界中最小的 K 个的平均值是该词得分的下界
+        Map<String, List<Integer>> word2Templates = new LinkedHashMap<>();
         for (int i = 0; i < templates.size(); i++) {
-            // 计算当前模板序列与待识别MFCC序列之间的DTW距离
-            distances[i] = dtwDistance(templates.get(i), inputFeatures);
+            word2Templates.computeIfAbsent(templates.word(i), w -> new ArrayList<>()).add(i);
+        }
+        Map<String, Score> scores = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : word2Templates.entrySet()) {
+            List<Integer> indices = entry.getValue();
+            indices.sort(Comparator.comparingDouble(i -> lowerBounds[i]));
+            int k = Math.min(mTopK, indices.size());
+            double sum = 0;
+            for (int i = 0; i < k; i++) {
+                sum += lowerBounds[indices.get(i)];
+            }
+            Score score = new Score(entry.getKey(), sum / k, indices.size());
+            for (int i = k; i < indices.size(); i++) {
+                sum += lowerBounds[indices.get(i)];
+            }
+            score.pendingBound = sum;
+            scores.put(entry.getKey(), score);
+        }
+
+        // 词按得分下界从小到大排列，同一个词的模板相邻，使两种上界尽早收紧
+        List<String> words = new ArrayList<>(word2Templates.keySet());
+        words.sort(Comparator.comparingDouble(w -> scores.get(w).lowerBound));
+        int[] order = words.stream().flatMap(w -> word2Templates.get(w).stream()).mapToInt(Integer::intValue).toArray();
+
+        SharedBound sharedBound = new SharedBound(words.size());
+        AtomicInteger started = new AtomicInteger();
+        double[] distances = new double[templates.size()]; // 完整算出的 DTW 距离，被下界跳过的为 NaN，提前放弃的为正无穷
+        Arrays.fill(distances, Double.NaN);
+        runParallel(order.length, t -> {
+            int i = order[t];
+            Score score = scores.get(templates.word(i));
+            double budget = score.budget(sharedBound.threshold, lowerBounds[i]);
+            if (score.pruned || score.lowerBound > sharedBound.threshold) {
+                // 该词不可能进入候选，跳过它剩下的所有模板
+                score.pruned = true;
+            } else if (lowerBounds[i] > score.bound()) {
+                // 下界已经超过该词当前第 K 好的距离，跳过完整的 DTW
+            } else if (lowerBounds[i] > budget) {
+                // 已算完的距离加上各模板的下界，平均后已超过共享上界，不必计算 DTW 就可以剪掉该词
+                score.finish(lowerBounds[i], lowerBounds[i], budget);
+            } else {
+                // 超过该词当前第 K 好的距离，或者使该词的平均分超过共享上界时提前放弃
+                double abandonAbove = Math.min(score.bound(), budget);
+                double distance = mDtw.distance(input, templates.sequence(i), abandonAbove);
+                distances[i] = distance <= abandonAbove ? distance : Double.POSITIVE_INFINITY;
+                started.incrementAndGet();
+                score.finish(lowerBounds[i], distance, budget);
+            }
+            if (score.finishTemplate() && !score.pruned) {
+                sharedBound.finish(score);
+            }
+        });
+
+        List<Score> results = candidates(scores.values());
+        if (!decided(results, scores.values())) {
+            // 被剪掉的词的下界不足以确定判决，完整地重新计算这些词
+            Score[] replayed = scores.values().stream().filter(score -> score.pruned).toArray(Score[]::new);
+            runParallel(replayed.length, r -> {
+                Score score = new Score(replayed[r].word, 0, 0);
+                for (int i : word2Templates.get(score.word)) {
+                    boolean skipped = Double.isNaN(distances[i]);
+                    if ((skipped || distances[i] == Double.POSITIVE_INFINITY) && lowerBounds[i] <= score.bound()) {
+                        distances[i] = mDtw.distance(input, templates.sequence(i), score.bound());
+                        if (skipped) {
+                            started.incrementAndGet();
+                        }
+                    }
+                    if (!Double.isNaN(distances[i]) && distances[i] != Double.POSITIVE_INFINITY) {
+                        score.offer(distances[i]);
+                    }
+                }
+                replayed[r] = score;
+            });
+            for (Score score : replayed) {
+                scores.put(score.word, score);
+            }
+            results = candidates(scores.values());
         }
+        recognition.templatesPruned = templates.size() - started.get();
+        recognition.dtwNanos = System.nanoTime() - start;
+        decide(results, recognition);
+    }
 
+    /**
+     * 得分最好的 mMaxCandidates 个词，被剪掉的词以其得分下界参与排序
+     */
+    private List<Score> candidates(Collection<Score> scores) {
+        return scores.stream().sorted().limit(mMaxCandidates).collect(Collectors.toList());
+    }
+
+    /**
+     * 检查被剪掉的词是否可能改变判决：满足以下任一条件时，各词的真实得分给出的识别结果和拒识判断与 results 相同
+     * <ul>
+     * <li>候选中没有被剪掉的词，且被剪掉的词的下界都大于最好的得分；</li>
+     * <li>最好的词没有被剪掉，被剪掉的词的下界都大于最好的得分、且不小于候选得分的平均值，按下界判断也不拒识。</li>
+     * </ul>
+     * 第二种情况下，真实得分只会把不小于平均值的候选得分调大，或者把候选替换成更大的得分，标准差和极差都不会变小。
+     *
+     * @param results 按得分从好到差排序的候选词
+     * @param scores  所有词的得分
+     * @return 判决是否已经确定
+     */
+    private boolean decided(List<Score> results, Collection<Score> scores) {
+        if (results.isEmpty()) {
+            return true;
+        }
+        Score best = results.get(0);
+        if (best.pruned) {
+            return false;
+        }
+        boolean prunedCandidate = results.stream().anyMatch(score -> score.pruned);
+        double mean = results.stream().mapToDouble(Score::getScore).average().getAsDouble();
+        for (Score score : scores) {
+            if (score.pruned && (score.getScore() <= best.getScore() || prunedCandidate && score.getScore() < mean)) {
+                return false;
+            }
+        }
+        return !prunedCandidate || !rejects(results.stream().mapToDouble(Score::getScore).toArray());
+    }
+
+    /**
+     * 通过近邻索引找出距离最近的 mNearest 个模板，各词只用其中属于自己的模板打分
+     * <p>
+     * 不在近邻中的模板，距离都不小于第 mNearest 近的距离：近邻中模板不足 K 个的词，缺少的部分以该距离补齐，
+     * 得到的是该词得分的下界；近邻中已有 K 个模板的词，得分不受影响。
+     */
+    private void recognizeNearest(LocalDistance.Sequence input, TemplateModel model, long start, Recognition recognition) {
+        TemplateStore templates = model.store;
         Map<String, Score> scores = new HashMap<>();
-        for (int i = 0; i < distances.length; i++) {
-            String word = mId2Word.get(i);
-            scores.putIfAbsent(word, new Score(word));
-            scores.get(word).scores.add(distances[i]);
+        AtomicInteger pruned = new AtomicInteger();
+        List<TemplateIndex.Neighbor> neighbors = model.index.nearest(input, templates, model.envelopes, model.dtw, mNearest, pruned);
+        recognition.templatesPruned = pruned.get();
+        for (TemplateIndex.Neighbor neighbor : neighbors) {
+            String word = templates.word(neighbor.template);
+            scores.computeIfAbsent(word, w -> new Score(w, 0, 0)).offer(neighbor.distance);
+        }
+        if (!neighbors.isEmpty()) {
+            double farthest = neighbors.get(neighbors.size() - 1).distance;
+            int[] templateCounts = templateCounts(templates);
+            for (int w = 0; w < templateCounts.length; w++) {
+                int k = Math.min(mTopK, templateCounts[w]);
+                if (k == 0) {
+                    continue;
+                }
+                Score score = scores.computeIfAbsent(templates.words().get(w), word -> new Score(word, farthest, 0));
+                while (score.scores.size() < k) {
+                    score.offer(farthest);
+                }
+            }
         }
-        List<Score> results = scores.values().stream().sorted().collect(Collectors.toList());
+        List<Score> results = scores.values().stream().sorted().limit(mMaxCandidates).collect(Collectors.toList());
+        recognition.dtwNanos = System.nanoTime() - start;
+        decide(results, recognition);
+    }
+
+    /**
+     * 各词是否都只取一部分模板打分：mTopK 不小于某个词的模板数时，该词的得分是所有模板的平均值，
+     * 近邻以外的模板只能以第 mNearest 近的距离补齐，得到的得分挤在一起，拒识规则失去意义，此时不使用近邻索引
+     */
+    private boolean topKOnly(TemplateStore templates) {
+        for (int count : templateCounts(templates)) {
+            if (count > 0 && mTopK >= count) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] templateCounts(TemplateStore templates) {
+        int[] counts = new int[templates.words().size()];
+        for (int i = 0; i < templates.size(); i++) {
+            counts[templates.wordId(i)]++;
+        }
+        return counts;
+    }
+
+    /**
+     * 根据排好序的各词得分给出识别结果
+     *
+     * @param results 按得分从好到差排序的候选词
+     * @return 识别结果，拒识时返回 null
+     */
+    String decide(List<Score> results) {
+        Recognition recognition = new Recognition();
+        decide(results, recognition);
+        AsrMetrics.get().reject.record(recognition.rejectNanos);
+        return recognition.word;
+    }
+
+    /**
+     * 判决并把结果和拒识的耗时写入 recognition，不计入 AsrMetrics
+     */
+    void decide(List<Score> results, Recognition recognition) {
         for (Score result : results) {
             System.out.printf("score: %s, word: %s%n", result.getScore(), result.word);
         }
         ;
-        if (results.size() > 0 && !reject(results.stream().mapToDouble(Score::getScore).toArray())) {
+        long start = System.nanoTime();
+        boolean rejected = results.isEmpty() || reject(results.stream().mapToDouble(Score::getScore).toArray());
+        recognition.rejectNanos = System.nanoTime() - start;
+        if (!rejected) {
             Score best1 = results.get(0);
             System.out.printf("best1: score: %s, word: %s%n", best1.getScore(), best1.word);
-            return best1.word;
+            recognition.word = best1.word;
         } else {
             System.out.printf("best1: score: %s, word: %s%n", null, null);
-            return null;
+            recognition.word = null;
+        }
+    }
+
+    /**
+     * 一次离线识别的结果及各阶段的耗时
+     */
+    static final class Recognition {
+        String word; // 识别结果，拒识时为 null
+        long dtwNanos; // 模板打分的耗时
+        long rejectNanos; // 判决和拒识的耗时
+        int templatesPruned; // 被下界剪掉的模板数
+
+        /**
+         * 计入 AsrMetrics
+         */
+        void record() {
+            AsrMetrics metrics = AsrMetrics.get();
+            metrics.templatesPruned.add(templatesPruned);
+            metrics.dtw.record(dtwNanos);
+            metrics.reject.record(rejectNanos);
+        }
+    }
+
+    /**
+     * 创建一个在线解码器，随 MFCC 帧的到达逐帧推进所有模板的 DTW
+     *
+     * @return 在线解码器
+     */
+    OnlineDec online() {
+        return new OnlineDec(this);
+    }
+
+    /**
+     * 把 [0, count) 的任务分给 mExecutor 上的 mParallelism 个线程执行（调用线程也参与），按下标顺序领取任务
+     */
+    private void runParallel(int count, IntConsumer task) {
+        AtomicInteger next = new AtomicInteger();
+        Runnable worker = () -> {
+            for (int t = next.getAndIncrement(); t < count; t = next.getAndIncrement()) {
+                task.accept(t);
+            }
+        };
+        int workers = null == mExecutor ? 1 : Math.min(mParallelism, count);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int w = 1; w < workers; w++) {
+            futures.add(CompletableFuture.runAsync(worker, mExecutor));
+        }
+        worker.run();
+        for (CompletableFuture<Void> future : futures) {
+            future.join();
+        }
+    }
+
+    /**
+     * 一次识别中各线程共享的上界，得分超过它的词不会改变判决
+     * <p>
+     * 已完成打分的词达到 mMaxCandidates 个时取其中第 mMaxCandidates 好的得分；不足时取最小的 v，
+     * 使 v 大于最好的得分、不小于已完成得分的平均值，并且剩下的候选位置都以 v 补齐后不拒识。
+     * 这只是剪枝的依据，识别结束时由 decided 检查，不满足时重新计算被剪掉的词。
+     */
+    private class SharedBound {
+        private final List<Double> finished = new ArrayList<>();
+        private final int words;
+        volatile double threshold = Double.POSITIVE_INFINITY;
+
+        SharedBound(int words) {
+            this.words = words;
+        }
+
+        synchronized void finish(Score score) {
+            double value = score.getScore();
+            int pos = Collections.binarySearch(finished, value);
+            finished.add(pos < 0 ? -pos - 1 : pos, value);
+            threshold = threshold();
+        }
+
+        private double threshold() {
+            if (finished.size() >= mMaxCandidates) {
+                return finished.get(mMaxCandidates - 1);
+            }
+            int slots = Math.min(words, mMaxCandidates) - finished.size();
+            if (slots <= 0) {
+                return Double.POSITIVE_INFINITY;
+            }
+            double best = finished.get(0);
+            double mean = finished.stream().mapToDouble(Double::doubleValue).average().getAsDouble();
+            double low = Math.max(mean, best);
+            if (low <= best) {
+                low = Math.nextUp(best);
+            }
+            if (!rejects(low, slots)) {
+                return low;
+            }
+            // v 不小于平均值时，标准差和极差都随 v 增大而增大，先倍增找到不拒识的 v，再二分
+            double step = Math.max(1, Math.abs(low));
+            for (int i = 0; rejects(low + step, slots); i++) {
+                if (i == 60) {
+                    return Double.POSITIVE_INFINITY;
+                }
+                step *= 2;
+            }
+            double high = low + step;
+            for (int i = 0; i < 50; i++) {
+                double mid = (low + high) / 2;
+                if (rejects(mid, slots)) {
+                    low = mid;
+                } else {
+                    high = mid;
+                }
+            }
+            return high;
+        }
+
+        private boolean rejects(double value, int slots) {
+            double[] scores = new double[finished.size() + slots];
+            for (int i = 0; i < finished.size(); i++) {
+                scores[i] = finished.get(i);
+            }
+            Arrays.fill(scores, finished.size(), scores.length, value);
+            Arrays.sort(scores);
+            return SimpleDec.rejects(scores);
         }
     }
 
     boolean reject(double[] scores) {
+        boolean reject = rejects(scores);
+        System.out.println("是否拒识：" + reject + ", 标准差: " + stdDev(scores) + ", 极差: " + range(scores));
+        return reject;
+    }
+
+    /**
+     * 与 reject 相同，但不输出
+     *
+     * @param scores 从小到大排序的候选得分
+     */
+    static boolean rejects(double[] scores) {
         // 计算标准差，根据标准差评估是否应当拒识
+        return stdDev(scores) < 50 || range(scores) < 100;
+    }
+
+    private static double stdDev(double[] scores) {
         double sum = Arrays.stream(scores).sum();
         double mean = sum / scores.length;
         double mu2 = Arrays.stream(scores).map(s -> Math.pow(s - mean, 2)).sum() / scores.length;
-        double mu = Math.sqrt(mu2);
-        double range = scores[scores.length - 1] - scores[0];
-        boolean reject = mu < 50 || range < 100;
-        System.out.println("是否拒识：" + reject + ", 标准差: " + mu + ", 极差: " + range);
-        return reject;
+        return Math.sqrt(mu2);
+    }
+
+    private static double range(double[] scores) {
+        return scores[scores.length - 1] - scores[0];
     }
 
     class Score implements Comparable<Score> {
         String word;
         List<Double> scores = new ArrayList<>();
+        double lowerBound; // 得分的下界，被剪掉的词以它代替得分
+        int remaining; // 尚未处理的模板数
+        final int templateCount;
+        double finishedSum; // 对所有模板取平均时，已算完的模板距离之和
+        double pendingBound; // 对所有模板取平均时，尚未算完的模板下界之和
+        volatile boolean pruned; // 已确定不可能进入候选
 
-        public Score(String word) {
+        public Score(String word, double lowerBound, int templateCount) {
             this.word = word;
+            this.lowerBound = lowerBound;
+            this.remaining = templateCount;
+            this.templateCount = templateCount;
+        }
+
+        /**
+         * 对所有模板取平均时，下界为 lowerBound 的模板距离的上限：超过它时该词的平均分必然超过 threshold
+         *
+         * @return 只取最好的一部分模板时总是返回正无穷
+         */
+        synchronized double budget(double threshold, double lowerBound) {
+            if (mTopK < templateCount || threshold == Double.POSITIVE_INFINITY) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return threshold * templateCount - finishedSum - (pendingBound - lowerBound);
+        }
+
+        /**
+         * 加入一个下界为 lowerBound 的模板的距离；距离超过 budget 时它只是一个下界，该词被剪掉
+         */
+        synchronized void finish(double lowerBound, double distance, double budget) {
+            if (distance > budget) {
+                pruned = true;
+                this.lowerBound = Math.max(this.lowerBound,
+                        (finishedSum + distance + pendingBound - lowerBound) / templateCount);
+                return;
+            }
+            finishedSum += distance;
+            pendingBound -= lowerBound;
+            offer(distance);
         }
 
-        public double getScore() {
+        /**
+         * 标记处理完一个模板
+         *
+         * @return 该词的所有模板是否都已处理完
+         */
+        synchronized boolean finishTemplate() {
+            return --remaining == 0;
+        }
+
+        /**
+         * 加入一个模板距离，只保留最好的 mTopK 个
+         */
+        synchronized void offer(double distance) {
+            if (scores.size() >= mTopK && distance >= scores.get(scores.size() - 1)) {
+                return;
+            }
+            int pos = Collections.binarySearch(scores, distance);
+            scores.add(pos < 0 ? -pos - 1 : pos, distance);
+            if (scores.size() > mTopK) {
+                scores.remove(scores.size() - 1);
+            }
+        }
+
+        /**
+         * 当前第 K 好的距离，超过该值的模板不会影响得分
+         */
+        synchronized double bound() {
+            return scores.size() < mTopK ? Double.POSITIVE_INFINITY : scores.get(scores.size() - 1);
+        }
+
+        public synchronized double getScore() {
+            if (pruned) {
+                return lowerBound;
+            }
             double sum = 0;
             for (Double score : scores) {
                 sum += score;
@@ -207,7 +815,8 @@ class SimpleDec {
 
         @Override
         public int compareTo(Score o) {
-            return Double.compare(this.getScore(), o.getScore());
+            int c = Double.compare(this.getScore(), o.getScore());
+            return c != 0 ? c : word.compareTo(o.word);
         }
     }
 }
@@ -1,43 +1,72 @@
 package demo.weilikai.simpleasr;
 
+import demo.weilikai.simpleasr.util.Kernels;
+
 /**
  * 用于检测语音活动的类
+ * <p>
+ * 状态机直接使用前端已经算好的 MFCC 帧（每 10ms 一帧）的 c0，即对数梅尔能量之和，不再单独计算每个采样的能量。
+ * 阈值为自适应的噪声底加上固定的余量：不在说话时噪声底缓慢跟随 c0 上升，c0 低于噪声底时快速下降，
+ * 因此在噪声较大的线路上也不会一直误判为有人说话。
  */
 public class SimpleVad {
     public static final int FRAME_LENGTH_MS = 25; // 每帧音频的长度（毫秒）
     public static final int SAMPLE_RATE = 16000; // 采样率（赫兹）
-    public static final double ENERGY_THRESHOLD_DB = -40; // 能量阈值（分贝）
+    public static final double ENERGY_THRESHOLD_DB = -40; // 能量阈值（分贝），仅用于 detectVoiceActivity
+
+    static final int START_FRAMES = 12; // 累计这么多帧（约 120ms）有语音活动，且中间的停顿不超过 START_GAP 帧，认为用户开始说话
+    static final int START_GAP = 3; // 开始说话的计数过程中允许的最长停顿帧数，单帧 c0 比 25ms 的能量起伏更大
+    static final int END_FRAMES = 22; // 连续这么多帧（约 220ms）无语音活动，认为用户说话结束
+    static final double MARGIN = 10; // 高出噪声底的余量，c0 每变化约 0.72 对应 1dB，即约 14dB
+    static final double MIN_THRESHOLD = 45; // 阈值下限，约相当于 -45dB，避免数字静音后噪声底过低
+    static final double FLOOR_RISE = 0.01; // 噪声底上升的平滑系数，约 1 秒跟上
+    static final double FLOOR_FALL = 0.2; // 噪声底下降的平滑系数
 
     private int state = 0;
     private int voiceActivityCounter = 0;
     private int silenceCounter = 0;
+    private double noiseFloor = Double.NaN;
 
     /**
      * 检测语音活动的有限状态机（FSM）方法
      *
-     * @param audioData 从麦克风读取的音频数据
+     * @param feature 前端输出的一帧 MFCC，使用其中的 c0
      * @return 检测到的语音活动状态（0表示等待用户说话，1表示用户正在说话，2表示用户说话结束）
      */
-    public int detectVoiceActivityFSM(short[] audioData) {
-        double energyDB = calculateDecibel(audioData);
-        boolean voiceActivity = energyDB > ENERGY_THRESHOLD_DB;
+    public int detectVoiceActivityFSM(double[] feature) {
+        double c0 = feature[0];
+        boolean voiceActivity = c0 > threshold();
+        if (state == 0 && !Double.isInfinite(c0)) {
+            // 全零的数字静音 c0 为负无穷，不参与噪声底估计
+            if (Double.isNaN(noiseFloor)) {
+                noiseFloor = c0;
+            } else if (c0 < noiseFloor) {
+                noiseFloor += FLOOR_FALL * (c0 - noiseFloor);
+            } else if (!voiceActivity) {
+                noiseFloor += FLOOR_RISE * (c0 - noiseFloor);
+            }
+        }
 
         switch (state) {
             case 0: // 等待用户说话
                 if (voiceActivity) {
                     voiceActivityCounter++;
-                    if (voiceActivityCounter > 4) { // 连续 4 帧语音活动，认为用户开始说话
+                    silenceCounter = 0;
+                    if (voiceActivityCounter >= START_FRAMES) {
                         state = 1;
                         voiceActivityCounter = 0;
                     }
+                } else if (voiceActivityCounter > 0 && ++silenceCounter <= START_GAP) {
+                    // 短暂停顿，不打断计数
                 } else {
                     voiceActivityCounter = 0;
+                    silenceCounter = 0;
                 }
                 break;
             case 1: // 用户正在说话
                 if (!voiceActivity) {
                     silenceCounter++;
-                    if (silenceCounter > 8) { // 连续 8 帧无语音活动，认为用户说话结束
+                    if (silenceCounter >= END_FRAMES) {
                         state = 2;
                         silenceCounter = 0;
                     }
@@ -46,15 +75,26 @@ public class SimpleVad {
                 }
                 break;
             case 2: // 用户说话结束
-                // 该状态下不执行任何操作，你可以重置状态机以便于再次检测用户的说话，或者执行其他操作。
                 state = 0;
-                voiceActivityCounter = 0;
+                voiceActivityCounter = voiceActivity ? 1 : 0;
+                silenceCounter = 0;
                 break;
         }
-        System.out.print("VAD State: " + state + "" + ", 音量分贝: " + energyDB + ", 人声：" + voiceActivity + ", \r");
+        return state;
+    }
 
+    /**
+     * @return 说话过程中已连续的无语音帧数，达到 END_FRAMES 时说话结束；不在说话时为 0
+     */
+    int silenceFrames() {
+        return state == 1 ? silenceCounter : 0;
+    }
 
-        return state;
+    /**
+     * 当前判断为语音的 c0 阈值
+     */
+    double threshold() {
+        return Double.isNaN(noiseFloor) ? MIN_THRESHOLD : Math.max(MIN_THRESHOLD, noiseFloor + MARGIN);
     }
 
     /**
@@ -79,10 +119,7 @@ public class SimpleVad {
      * @return 分贝值
      */
     public static double calculateDecibel(short[] samples) {
-        double sum = 0;
-        for (short s : samples) {
-            sum += Math.pow(s, 2);
-        }
+        double sum = Kernels.get().sumOfSquares(samples);
 
         double rms = Math.sqrt(sum / samples.length);
         double db = 20 * Math.log10(rms / Short.MAX_VALUE);
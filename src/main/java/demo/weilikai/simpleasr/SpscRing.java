@@ -0,0 +1,113 @@
+package demo.weilikai.simpleasr;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 无锁的单生产者单消费者环形队列
+ * <p>
+ * 生产者和消费者各自只写自己的位置计数，通过 AtomicLong 的 lazySet/get 完成元素的发布。
+ * 队列满时 offer 立即返回 false 并计入溢出次数，生产者永远不会阻塞。
+ *
+ * @param <E> 元素类型
+ */
+final class SpscRing<E> {
+
+    private final Object[] buffer;
+    private final int mask;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong(); // 下一个要读取的位置，只由消费者写
+    private final AtomicLong tail = new AtomicLong(); // 下一个要写入的位置，只由生产者写
+    private final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * @param capacity 队列容量，向上取整为 2 的幂
+     */
+    SpscRing(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity 必须大于 0");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.buffer = new Object[size];
+    }
+
+    /**
+     * 生产者放入一个元素
+     *
+     * @param e 元素
+     * @return 队列已满时返回 false，元素被丢弃
+     */
+    boolean offer(E e) {
+        long t = tail.get();
+        if (t - head.get() >= capacity) {
+            overflows.incrementAndGet();
+            return false;
+        }
+        buffer[(int) (t & mask)] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 消费者取出一个元素
+     *
+     * @return 队列为空时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        int index = (int) (h & mask);
+        E e = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    /**
+     * 消费者取出一个元素，队列为空时先自旋、再短暂休眠等待
+     *
+     * @return 元素
+     * @throws InterruptedException 等待时线程被中断
+     */
+    E take() throws InterruptedException {
+        int spins = 0;
+        while (true) {
+            E e = poll();
+            if (null != e) {
+                return e;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            if (++spins < 100) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return 因队列已满而被丢弃的元素个数
+     */
+    long overflows() {
+        return overflows.get();
+    }
+}
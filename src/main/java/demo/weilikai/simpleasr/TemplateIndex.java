@@ -0,0 +1,231 @@
+package demo.weilikai.simpleasr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 模板的枢轴表索引（LAESA），用于查询与输入最近的 k 个模板
+ * <p>
+ * 编译模型时选出若干枢轴模板，预先计算每个模板到各枢轴的 DTW 距离。查询时只需计算输入到枢轴的距离，
+ * 由三角不等式 |d(q, p) - d(t, p)| 得到其余模板的距离下界，按下界从小到大依次计算，下界超过当前第 k 近的距离时停止。
+ * 剩下的候选再用 LB_Kim / LB_Keogh 过滤一次，然后才计算完整的 DTW。
+ * <p>
+ * DTW 并不严格满足三角不等式，枢轴下界只是近似，个别模板可能被误剪；LB_Kim / LB_Keogh 则是严格的下界。
+ * <p>
+ * 距离表只对建立索引时的 DTW 参数有效，索引记下这些参数（见 Dtw.config()），参数不同的 DTW 不能用它查询或追加。
+ */
+final class TemplateIndex {
+
+    private final String dtwConfig; // 建立索引时的 DTW 参数
+    private final int[] pivots; // 枢轴模板的编号
+    private final double[] table; // 模板 t 到第 p 个枢轴的距离位于 table[t * pivots.length + p]
+
+    TemplateIndex(String dtwConfig, int[] pivots, double[] table) {
+        if (pivots.length > 0 && table.length % pivots.length != 0) {
+            throw new IllegalArgumentException("枢轴距离表大小不正确：" + table.length);
+        }
+        this.dtwConfig = dtwConfig;
+        this.pivots = pivots;
+        this.table = table;
+    }
+
+    /**
+     * 按最远优先的顺序选出枢轴，并计算所有模板到枢轴的距离
+     * <p>
+     * 第一个枢轴取第 0 个模板，之后每次取到已选枢轴最小距离最大的模板，使枢轴尽量分散。
+     *
+     * @param store      模板
+     * @param dtw        计算距离使用的 DTW，应与识别时一致
+     * @param pivotCount 枢轴个数
+     * @return 索引
+     */
+    static TemplateIndex build(TemplateStore store, Dtw dtw, int pivotCount) {
+        int n = store.size();
+        int count = Math.min(pivotCount, n);
+        int[] pivots = new int[count];
+        double[] table = new double[n * count];
+        double[] nearest = new double[n]; // 每个模板到已选枢轴的最小距离
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        int next = 0;
+        for (int p = 0; p < count; p++) {
+            pivots[p] = next;
+            LocalDistance.Sequence pivot = store.sequence(next);
+            for (int t = 0; t < n; t++) {
+                double distance = t == next ? 0 : dtw.distance(store.sequence(t), pivot, Double.POSITIVE_INFINITY);
+                table[t * count + p] = distance;
+                nearest[t] = Math.min(nearest[t], distance);
+            }
+            for (int t = 0; t < n; t++) {
+                if (nearest[t] > nearest[next]) {
+                    next = t;
+                }
+            }
+        }
+        return new TemplateIndex(dtw.config(), pivots, table);
+    }
+
+    /**
+     * 为追加在末尾的模板补上到各枢轴的距离，已有模板的距离和枢轴不变
+     *
+     * @param store 追加模板后的存储，前 size() 个模板与建立索引时相同
+     * @param dtw   计算距离使用的 DTW，应与建立索引时一致
+     * @return 新的索引
+     */
+    TemplateIndex append(TemplateStore store, Dtw dtw) {
+        checkDtw(dtw);
+        int n = store.size();
+        int count = pivots.length;
+        double[] next = Arrays.copyOf(table, n * count);
+        for (int t = size(); t < n; t++) {
+            LocalDistance.Sequence template = store.sequence(t);
+            for (int p = 0; p < count; p++) {
+                next[t * count + p] = dtw.distance(template, store.sequence(pivots[p]), Double.POSITIVE_INFINITY);
+            }
+        }
+        return new TemplateIndex(dtwConfig, pivots, next);
+    }
+
+    /**
+     * 只保留部分模板的距离
+     *
+     * @param kept 保留的模板编号，从小到大排列，其位置即新的模板编号
+     * @return 新的索引，有枢轴被去掉时返回 null
+     */
+    TemplateIndex retain(int[] kept) {
+        int count = pivots.length;
+        int[] nextPivots = new int[count];
+        for (int p = 0; p < count; p++) {
+            int position = Arrays.binarySearch(kept, pivots[p]);
+            if (position < 0) {
+                return null;
+            }
+            nextPivots[p] = position;
+        }
+        double[] next = new double[kept.length * count];
+        for (int k = 0; k < kept.length; k++) {
+            System.arraycopy(table, kept[k] * count, next, k * count, count);
+        }
+        return new TemplateIndex(dtwConfig, nextPivots, next);
+    }
+
+    /**
+     * @return 是否可以用该 DTW 查询，即参数与建立索引时相同
+     */
+    boolean matches(Dtw dtw) {
+        return dtwConfig.equals(dtw.config());
+    }
+
+    private void checkDtw(Dtw dtw) {
+        if (!matches(dtw)) {
+            throw new IllegalArgumentException("近邻索引按 " + dtwConfig + " 建立，与当前的 " + dtw.config() + " 不一致");
+        }
+    }
+
+    String dtwConfig() {
+        return dtwConfig;
+    }
+
+    int[] pivots() {
+        return pivots;
+    }
+
+    double[] table() {
+        return table;
+    }
+
+    /**
+     * 建立索引时的模板数
+     */
+    int size() {
+        return pivots.length == 0 ? 0 : table.length / pivots.length;
+    }
+
+    /**
+     * 查询与输入距离最近的 k 个模板
+     *
+     * @param input     输入的MFCC序列
+     * @param store     建立索引时的模板，按需解码
+     * @param envelopes 与模板一一对应的包络
+     * @param dtw       计算距离使用的 DTW，参数必须与建立索引时相同
+     * @param k         返回的模板个数
+     * @param pruned    累加没有计算完整 DTW 的模板数
+     * @return 按距离从小到大排列的最近模板
+     */
+    List<Neighbor> nearest(LocalDistance.Sequence input, TemplateStore store, List<Dtw.Envelope> envelopes,
+                           Dtw dtw, int k, AtomicInteger pruned) {
+        checkDtw(dtw);
+        int n = store.size();
+        int count = pivots.length;
+        PriorityQueue<Neighbor> best = new PriorityQueue<>(Comparator.comparingDouble((Neighbor neighbor) -> neighbor.distance).reversed());
+        boolean[] visited = new boolean[n];
+
+        // 枢轴本身也是候选
+        double[] pivotDistances = new double[count];
+        for (int p = 0; p < count; p++) {
+            pivotDistances[p] = dtw.distance(input, store.sequence(pivots[p]), Double.POSITIVE_INFINITY);
+            visited[pivots[p]] = true;
+            offer(best, new Neighbor(pivots[p], pivotDistances[p]), k);
+        }
+
+        // 其余模板按枢轴下界从小到大计算
+        double[] bounds = new double[n];
+        List<Integer> order = new ArrayList<>(n);
+        for (int t = 0; t < n; t++) {
+            if (visited[t]) {
+                continue;
+            }
+            double bound = 0;
+            for (int p = 0; p < count; p++) {
+                bound = Math.max(bound, Math.abs(pivotDistances[p] - table[t * count + p]));
+            }
+            bounds[t] = bound;
+            order.add(t);
+        }
+        order.sort(Comparator.comparingDouble(t -> bounds[t]));
+
+        int computed = count;
+        for (int t : order) {
+            double threshold = best.size() < k ? Double.POSITIVE_INFINITY : best.peek().distance;
+            if (bounds[t] > threshold) {
+                break;
+            }
+            if (dtw.lowerBound(input, envelopes.get(t), threshold) > threshold) {
+                continue;
+            }
+            double distance = dtw.distance(input, store.sequence(t), threshold);
+            computed++;
+            if (distance < threshold) {
+                offer(best, new Neighbor(t, distance), k);
+            }
+        }
+        pruned.addAndGet(n - computed);
+
+        List<Neighbor> neighbors = new ArrayList<>(best);
+        neighbors.sort(Comparator.comparingDouble(neighbor -> neighbor.distance));
+        return neighbors;
+    }
+
+    private static void offer(PriorityQueue<Neighbor> best, Neighbor neighbor, int k) {
+        best.offer(neighbor);
+        if (best.size() > k) {
+            best.poll();
+        }
+    }
+
+    /**
+     * 一个近邻模板及其 DTW 距离
+     */
+    static final class Neighbor {
+        final int template;
+        final double distance;
+
+        Neighbor(int template, double distance) {
+            this.template = template;
+            this.distance = distance;
+        }
+    }
+}
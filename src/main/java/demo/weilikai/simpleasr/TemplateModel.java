@@ -0,0 +1,102 @@
+package demo.weilikai.simpleasr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 解码器使用的一份不可变的模型快照：模板、与之一一对应的包络，以及可选的近邻索引
+ * <p>
+ * 模板只以 TemplateStore 中按存储精度紧凑存放的形式常驻内存，计算 DTW 时才逐个解码为按维度优先的 double 序列，用完即弃；
+ * 包络按字节量化，每帧只占 2 × 维数个字节。
+ * 修改词表时总是基于当前快照生成一份新的快照再整体替换，正在进行的识别继续使用取到的旧快照，不会看到一半的修改。
+ * 新快照只计算变化的部分：已有模板的特征整块复制，包络直接复用，近邻索引只补上新模板到枢轴的距离。
+ */
+final class TemplateModel {
+
+    final TemplateStore store;
+    final List<Dtw.Envelope> envelopes; // 与 store 中的模板一一对应
+    final Dtw dtw; // 计算包络使用的 DTW
+    final TemplateIndex index; // 近邻索引，为 null 时逐个模板打分
+
+    private TemplateModel(TemplateStore store, List<Dtw.Envelope> envelopes, Dtw dtw, TemplateIndex index) {
+        this.store = store;
+        this.envelopes = Collections.unmodifiableList(envelopes);
+        this.dtw = dtw;
+        this.index = index;
+    }
+
+    /**
+     * 计算全部模板的包络
+     *
+     * @param store 模板
+     * @param dtw   计算包络使用的 DTW
+     * @param index 近邻索引，可以为 null
+     * @return 模型快照
+     */
+    static TemplateModel of(TemplateStore store, Dtw dtw, TemplateIndex index) {
+        List<Dtw.Envelope> envelopes = new ArrayList<>(store.size());
+        appendEnvelopes(store, dtw, envelopes);
+        return new TemplateModel(store, envelopes, dtw, index);
+    }
+
+    private static void appendEnvelopes(TemplateStore store, Dtw dtw, List<Dtw.Envelope> envelopes) {
+        for (int t = envelopes.size(); t < store.size(); t++) {
+            envelopes.add(dtw.envelope(store.sequence(t)));
+        }
+    }
+
+    /**
+     * @return 按新的 DTW 重新计算包络的快照；DTW 不变时返回本快照
+     */
+    TemplateModel withDtw(Dtw dtw) {
+        return dtw == this.dtw ? this : of(store, dtw, index);
+    }
+
+    /**
+     * @return 换用新索引的快照
+     */
+    TemplateModel withIndex(TemplateIndex index) {
+        return new TemplateModel(store, envelopes, dtw, index);
+    }
+
+    /**
+     * 追加模板
+     *
+     * @param added 追加的模板，可以属于已有的词，也可以是新词
+     * @return 新的快照
+     */
+    TemplateModel append(TemplateStore added) {
+        TemplateStore next = store.append(added);
+        List<Dtw.Envelope> nextEnvelopes;
+        if (next.encoding() == TemplateStore.Encoding.INT8 && !next.sameQuantization(store)) {
+            // 重新量化后已有模板的数值也变了，包络随之重新计算
+            nextEnvelopes = new ArrayList<>(next.size());
+        } else {
+            nextEnvelopes = new ArrayList<>(envelopes);
+        }
+        appendEnvelopes(next, dtw, nextEnvelopes);
+        // 按其他 DTW 参数建立的索引无法补上新模板的距离，随之作废
+        TemplateIndex nextIndex = null == index || store.size() == 0 || !index.matches(dtw) ? null : index.append(next, dtw);
+        return new TemplateModel(next, nextEnvelopes, dtw, nextIndex);
+    }
+
+    /**
+     * 去掉一个词及其所有模板
+     *
+     * @param word 要去掉的词
+     * @return 新的快照，没有该词时返回本快照；被去掉的模板中有枢轴时新快照不带索引
+     */
+    TemplateModel without(String word) {
+        if (!store.words().contains(word)) {
+            return this;
+        }
+        int[] kept = store.keptTemplates(word);
+        List<Dtw.Envelope> nextEnvelopes = new ArrayList<>(kept.length);
+        for (int t : kept) {
+            nextEnvelopes.add(envelopes.get(t));
+        }
+        TemplateIndex nextIndex = null == index ? null : index.retain(kept);
+        return new TemplateModel(store.without(word), nextEnvelopes, dtw, nextIndex);
+    }
+}
@@ -0,0 +1,252 @@
+package demo.weilikai.simpleasr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 编译模型时精简模板：按 DTW 距离把每个词的模板聚成不超过 budget 类，每类只保留一个代表模板
+ * <p>
+ * 这样无论录入多少遍，每个词参与识别的模板数都有上限，识别一句话的 DTW 计算量也随之有界。
+ */
+final class TemplateReducer {
+
+    /**
+     * 每类代表模板的选取方式
+     */
+    enum Method {
+        /**
+         * 保留类中到其他成员 DTW 距离之和最小的原始模板（k-medoids）
+         */
+        MEDOIDS,
+        /**
+         * 以 medoid 为初值，用 DTW 重心平均（DBA）迭代求出类的平均模板
+         */
+        DBA
+    }
+
+    static final int MAX_ITERATIONS = 20; // k-medoids 交替分配/更新的最大轮数
+    static final int DBA_ITERATIONS = 10; // DBA 的最大迭代轮数
+
+    private final Dtw dtw;
+    private final Method method;
+    private final int budget;
+
+    /**
+     * @param dtw    计算模板间距离和对齐路径使用的 DTW
+     * @param method 代表模板的选取方式
+     * @param budget 每个词最多保留的模板数
+     */
+    TemplateReducer(Dtw dtw, Method method, int budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("每个词至少保留一个模板");
+        }
+        this.dtw = dtw;
+        this.method = method;
+        this.budget = budget;
+    }
+
+    /**
+     * 精简每个词的模板，模板数不超过 budget 的词原样保留
+     *
+     * @param store 原始模板
+     * @return 精简后的模板，按词的顺序存放，精度为 FLOAT64
+     */
+    TemplateStore reduce(TemplateStore store) {
+        List<Integer> wordIds = new ArrayList<>();
+        List<double[][]> templates = new ArrayList<>();
+        for (int w = 0; w < store.words().size(); w++) {
+            List<LocalDistance.Sequence> members = new ArrayList<>();
+            List<double[][]> frames = new ArrayList<>();
+            for (int t = 0; t < store.size(); t++) {
+                if (store.wordId(t) == w) {
+                    members.add(store.sequence(t));
+                    frames.add(store.frames(t));
+                }
+            }
+            List<double[][]> reduced = members.size() <= budget ? frames : reduce(members, frames);
+            for (double[][] template : reduced) {
+                templates.add(template);
+                wordIds.add(w);
+            }
+            AsrLog.info(String.format("%s, 模板数：%d -> %d", store.words().get(w), members.size(), reduced.size()));
+        }
+        return TemplateStore.of(store.words(), wordIds.stream().mapToInt(Integer::intValue).toArray(), templates,
+                store.dim(), TemplateStore.Encoding.FLOAT64, false);
+    }
+
+    private List<double[][]> reduce(List<LocalDistance.Sequence> members, List<double[][]> frames) {
+        int n = members.size();
+        // distances[i][j]：以 j 为模板识别 i 时的距离
+        double[][] distances = new double[n][n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                distances[i][j] = i == j ? 0 : dtw.distance(members.get(i), members.get(j), Double.POSITIVE_INFINITY);
+            }
+        }
+        int[] medoids = medoids(distances);
+        int[] assignment = assign(distances, medoids);
+
+        List<double[][]> reduced = new ArrayList<>();
+        for (int c = 0; c < medoids.length; c++) {
+            if (method == Method.MEDOIDS) {
+                reduced.add(frames.get(medoids[c]));
+                continue;
+            }
+            List<LocalDistance.Sequence> cluster = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                if (assignment[i] == c) {
+                    cluster.add(members.get(i));
+                }
+            }
+            reduced.add(average(frames.get(medoids[c]), cluster));
+        }
+        return reduced;
+    }
+
+    /**
+     * k-medoids：先贪心地逐个选出使总距离下降最多的模板，再交替分配成员、在类内重选 medoid，直到不再变化
+     */
+    private int[] medoids(double[][] distances) {
+        int n = distances.length;
+        int k = Math.min(budget, n);
+        int[] medoids = new int[k];
+        double[] nearest = new double[n]; // 每个模板到已选 medoid 的最小距离
+        Arrays.fill(nearest, Double.POSITIVE_INFINITY);
+        boolean[] chosen = new boolean[n];
+        for (int c = 0; c < k; c++) {
+            int best = -1;
+            double bestCost = Double.POSITIVE_INFINITY;
+            for (int j = 0; j < n; j++) {
+                if (chosen[j]) {
+                    continue;
+                }
+                double cost = 0;
+                for (int i = 0; i < n; i++) {
+                    cost += Math.min(nearest[i], distances[i][j]);
+                }
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = j;
+                }
+            }
+            medoids[c] = best;
+            chosen[best] = true;
+            for (int i = 0; i < n; i++) {
+                nearest[i] = Math.min(nearest[i], distances[i][best]);
+            }
+        }
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            int[] assignment = assign(distances, medoids);
+            boolean changed = false;
+            for (int c = 0; c < k; c++) {
+                int best = medoids[c];
+                double bestCost = clusterCost(distances, assignment, c, best);
+                for (int j = 0; j < n; j++) {
+                    if (assignment[j] == c) {
+                        double cost = clusterCost(distances, assignment, c, j);
+                        if (cost < bestCost) {
+                            bestCost = cost;
+                            best = j;
+                        }
+                    }
+                }
+                changed |= best != medoids[c];
+                medoids[c] = best;
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        return medoids;
+    }
+
+    /**
+     * 把每个模板分给距离最近的 medoid
+     */
+    private static int[] assign(double[][] distances, int[] medoids) {
+        int[] assignment = new int[distances.length];
+        for (int i = 0; i < distances.length; i++) {
+            for (int c = 1; c < medoids.length; c++) {
+                if (distances[i][medoids[c]] < distances[i][medoids[assignment[i]]]) {
+                    assignment[i] = c;
+                }
+            }
+        }
+        return assignment;
+    }
+
+    /**
+     * 以 j 为第 c 类代表时类内的总距离
+     */
+    private static double clusterCost(double[][] distances, int[] assignment, int c, int j) {
+        double cost = 0;
+        for (int i = 0; i < distances.length; i++) {
+            if (assignment[i] == c) {
+                cost += distances[i][j];
+            }
+        }
+        return cost;
+    }
+
+    /**
+     * DTW 重心平均：把每个成员与当前平均模板对齐，平均模板的每一帧取所有对齐到它的成员帧的均值，反复迭代
+     * <p>
+     * 平均模板长度与初值相同；当到各成员的距离之和不再下降时停止，返回距离之和最小的一次结果。
+     *
+     * @param initial 初值，通常为该类的 medoid
+     * @param cluster 类中的所有成员
+     * @return 平均模板
+     */
+    private double[][] average(double[][] initial, List<LocalDistance.Sequence> cluster) {
+        int length = initial.length;
+        int dim = initial.length > 0 ? initial[0].length : 0;
+        double[][] best = initial;
+        double bestCost = cost(LocalDistance.Sequence.of(initial), cluster);
+        double[][] current = initial;
+        int[] los = new int[length];
+        int[] his = new int[length];
+        for (int iteration = 0; iteration < DBA_ITERATIONS; iteration++) {
+            LocalDistance.Sequence centroid = LocalDistance.Sequence.of(current);
+            double[][] sums = new double[length][dim];
+            int[] counts = new int[length];
+            for (LocalDistance.Sequence member : cluster) {
+                dtw.align(centroid, member, los, his);
+                for (int i = 0; i < length; i++) {
+                    for (int j = los[i]; j <= his[i]; j++) {
+                        for (int d = 0; d < dim; d++) {
+                            sums[i][d] += member.get(j, d);
+                        }
+                        counts[i]++;
+                    }
+                }
+            }
+            double[][] next = new double[length][dim];
+            for (int i = 0; i < length; i++) {
+                for (int d = 0; d < dim; d++) {
+                    next[i][d] = sums[i][d] / counts[i];
+                }
+            }
+            double cost = cost(LocalDistance.Sequence.of(next), cluster);
+            if (cost >= bestCost) {
+                break;
+            }
+            best = next;
+            bestCost = cost;
+            current = next;
+        }
+        return best;
+    }
+
+    /**
+     * 以 template 为模板识别类中各成员时的距离之和
+     */
+    private double cost(LocalDistance.Sequence template, List<LocalDistance.Sequence> cluster) {
+        double cost = 0;
+        for (LocalDistance.Sequence member : cluster) {
+            cost += dtw.distance(member, template, Double.POSITIVE_INFINITY);
+        }
+        return cost;
+    }
+}
@@ -0,0 +1,494 @@
+package demo.weilikai.simpleasr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 不可变的模板存储
+ * <p>
+ * 所有模板的特征按帧首尾相连存放在一块连续的缓冲区中，模板只用起始帧序号、帧数和词编号三个数组索引，
+ * 不再为每一帧单独分配 double[]。缓冲区可以放在堆上，也可以放在堆外的直接缓冲区中。
+ * 特征可以按 double、float 或逐维线性量化的 int8 保存。存储是模板特征唯一常驻的一份，
+ * 计算 DTW 时才按模板临时解码为 LocalDistance.Sequence，用完即弃。
+ */
+final class TemplateStore {
+
+    /**
+     * 特征的存储精度
+     */
+    enum Encoding {
+        /**
+         * 8 字节 double，与提取出的特征完全一致
+         */
+        FLOAT64(8),
+        /**
+         * 4 字节 float
+         */
+        FLOAT32(4),
+        /**
+         * 1 字节，每一维按所有模板的取值范围线性量化为 256 级
+         */
+        INT8(1);
+
+        final int bytes;
+
+        Encoding(int bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final List<String> words;
+    private final int[] wordIds;
+    private final int[] offsets; // 每个模板第一帧在所有帧中的序号
+    private final int[] lengths;
+    private final int dim;
+    private final Encoding encoding;
+    private final ByteBuffer values; // 小端序
+    private final double[] scales; // INT8 每一维的量化步长
+    private final double[] biases; // INT8 每一维量化值为 0 时对应的特征值
+
+    private TemplateStore(List<String> words, int[] wordIds, int[] lengths, int dim,
+                          Encoding encoding, ByteBuffer values, double[] scales, double[] biases) {
+        if (wordIds.length != lengths.length) {
+            throw new IllegalArgumentException("模板数不一致：" + wordIds.length + " != " + lengths.length);
+        }
+        this.words = Collections.unmodifiableList(new ArrayList<>(words));
+        this.wordIds = wordIds;
+        this.lengths = lengths;
+        this.dim = dim;
+        this.encoding = encoding;
+        this.values = values.order(ByteOrder.LITTLE_ENDIAN);
+        this.scales = scales;
+        this.biases = biases;
+        offsets = new int[lengths.length];
+        long frames = 0;
+        for (int t = 0; t < lengths.length; t++) {
+            if (wordIds[t] < 0 || wordIds[t] >= words.size()) {
+                throw new IllegalArgumentException("模板词编号越界：" + wordIds[t]);
+            }
+            offsets[t] = Math.toIntExact(frames);
+            frames += lengths[t];
+        }
+        if (frames * dim * encoding.bytes > values.capacity()) {
+            throw new IllegalArgumentException("特征数据不足：需要 " + frames * dim * encoding.bytes + " 字节，实际 " + values.capacity());
+        }
+    }
+
+    /**
+     * 创建不含任何模板的存储
+     */
+    static TemplateStore empty(int dim) {
+        return new TemplateStore(Collections.emptyList(), new int[0], new int[0], dim,
+                Encoding.FLOAT64, ByteBuffer.allocate(0), null, null);
+    }
+
+    /**
+     * 按给定精度把逐帧存放的模板打包为连续存储
+     *
+     * @param words     词表
+     * @param wordIds   每个模板的词编号
+     * @param templates 模板的MFCC序列
+     * @param dim       特征维数
+     * @param encoding  存储精度
+     * @param direct    是否放在堆外的直接缓冲区中
+     * @return 模板存储
+     */
+    static TemplateStore of(List<String> words, int[] wordIds, List<double[][]> templates, int dim, Encoding encoding, boolean direct) {
+        int[] lengths = new int[templates.size()];
+        long frames = 0;
+        for (int t = 0; t < lengths.length; t++) {
+            lengths[t] = templates.get(t).length;
+            frames += lengths[t];
+        }
+        double[] scales = null;
+        double[] biases = null;
+        if (encoding == Encoding.INT8) {
+            double[] min = new double[dim];
+            double[] max = new double[dim];
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            for (double[][] template : templates) {
+                for (double[] frame : template) {
+                    for (int d = 0; d < dim; d++) {
+                        min[d] = Math.min(min[d], frame[d]);
+                        max[d] = Math.max(max[d], frame[d]);
+                    }
+                }
+            }
+            scales = new double[dim];
+            biases = new double[dim];
+            for (int d = 0; d < dim; d++) {
+                scales[d] = max[d] > min[d] ? (max[d] - min[d]) / 255 : 1;
+                biases[d] = frames == 0 ? 0 : min[d] + 128 * scales[d];
+            }
+        }
+
+        ByteBuffer values = allocate(Math.toIntExact(frames * dim * encoding.bytes), direct);
+        for (double[][] template : templates) {
+            put(values, template, dim, encoding, scales, biases);
+        }
+        values.clear();
+        return new TemplateStore(words, wordIds, lengths, dim, encoding, values, scales, biases);
+    }
+
+    private static void put(ByteBuffer values, double[][] template, int dim, Encoding encoding, double[] scales, double[] biases) {
+        for (double[] frame : template) {
+            if (frame.length != dim) {
+                throw new IllegalArgumentException("特征维数必须是" + dim + "，实际为" + frame.length);
+            }
+            for (int d = 0; d < dim; d++) {
+                switch (encoding) {
+                    case FLOAT64:
+                        values.putDouble(frame[d]);
+                        break;
+                    case FLOAT32:
+                        values.putFloat((float) frame[d]);
+                        break;
+                    default:
+                        long q = Math.round((frame[d] - biases[d]) / scales[d]);
+                        values.put((byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, q)));
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接使用已有的 double 特征数据（例如模型文件的内存映射），不做复制
+     *
+     * @param values 小端序的 double 特征，所有模板按帧首尾相连
+     */
+    static TemplateStore wrap(List<String> words, int[] wordIds, int[] lengths, int dim, ByteBuffer values) {
+        return new TemplateStore(words, wordIds, lengths, dim, Encoding.FLOAT64, values, null, null);
+    }
+
+    /**
+     * 按给定精度和存放位置复制出一份新的存储
+     *
+     * @param encoding 存储精度
+     * @param direct   是否放在堆外的直接缓冲区中
+     * @return 新的模板存储
+     */
+    TemplateStore encode(Encoding encoding, boolean direct) {
+        if (encoding == this.encoding && encoding != Encoding.INT8) {
+            // 精度不变时直接整块复制
+            ByteBuffer source = values.duplicate();
+            source.clear();
+            source.limit(Math.toIntExact(frameCount() * dim * encoding.bytes));
+            ByteBuffer copy = allocate(source.remaining(), direct);
+            copy.put(source);
+            copy.clear();
+            return new TemplateStore(words, wordIds, lengths, dim, encoding, copy, scales, biases);
+        }
+        return of(words, wordIds, frames(), dim, encoding, direct);
+    }
+
+    /**
+     * 在现有模板之后追加模板，得到一份新的存储，精度和存放位置与本存储相同
+     * <p>
+     * 现有模板的特征整块复制，不重新编码；追加的模板精度相同时也整块复制，否则逐帧编码。
+     * INT8 在追加的值都落在原有量化范围内时沿用本存储的量化参数，否则按全部模板重新计算量化参数、重新编码，不截断。
+     *
+     * @param added 追加的模板，其中的新词追加到词表末尾
+     * @return 新的模板存储
+     */
+    TemplateStore append(TemplateStore added) {
+        if (added.dim != dim) {
+            throw new IllegalArgumentException("特征维数必须是" + dim + "，实际为" + added.dim);
+        }
+        if (size() == 0) {
+            // 空存储没有量化参数，按追加的模板重新编码
+            List<String> addedWords = new ArrayList<>(words);
+            int[] addedIds = new int[added.size()];
+            for (int t = 0; t < added.size(); t++) {
+                addedIds[t] = wordIndex(addedWords, added.word(t));
+            }
+            return of(addedWords, addedIds, added.frames(), dim, encoding, isDirect());
+        }
+        List<String> nextWords = new ArrayList<>(words);
+        int[] nextIds = Arrays.copyOf(wordIds, size() + added.size());
+        int[] nextLengths = Arrays.copyOf(lengths, size() + added.size());
+        for (int t = 0; t < added.size(); t++) {
+            nextIds[size() + t] = wordIndex(nextWords, added.word(t));
+            nextLengths[size() + t] = added.length(t);
+        }
+        boolean sameEncoding = sameQuantization(added);
+        List<double[][]> addedFrames = sameEncoding ? null : added.frames();
+        if (encoding == Encoding.INT8 && !sameEncoding && !quantizable(addedFrames)) {
+            // 超出原有量化范围，按全部模板重新量化
+            List<double[][]> templates = frames();
+            templates.addAll(addedFrames);
+            return of(nextWords, nextIds, templates, dim, encoding, isDirect());
+        }
+        long bytes = valueBytes() + added.frameCount() * dim * encoding.bytes;
+        ByteBuffer next = allocate(Math.toIntExact(bytes), isDirect());
+        next.put(slice(0, size()));
+        if (sameEncoding) {
+            next.put(added.slice(0, added.size()));
+        } else {
+            for (double[][] template : addedFrames) {
+                put(next, template, dim, encoding, scales, biases);
+            }
+        }
+        next.clear();
+        return new TemplateStore(nextWords, nextIds, nextLengths, dim, encoding, next, scales, biases);
+    }
+
+    /**
+     * 按本存储的 INT8 量化参数编码这些特征时是否都不会被截断
+     */
+    private boolean quantizable(List<double[][]> templates) {
+        for (double[][] template : templates) {
+            for (double[] frame : template) {
+                if (frame.length != dim) {
+                    throw new IllegalArgumentException("特征维数必须是" + dim + "，实际为" + frame.length);
+                }
+                for (int d = 0; d < dim; d++) {
+                    long q = Math.round((frame[d] - biases[d]) / scales[d]);
+                    if (q < Byte.MIN_VALUE || q > Byte.MAX_VALUE) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 去掉一个词及其所有模板，得到一份新的存储，其余模板的特征整块复制，顺序不变
+     *
+     * @param word 要去掉的词
+     * @return 新的模板存储，没有该词时返回本存储
+     */
+    TemplateStore without(String word) {
+        int removed = words.indexOf(word);
+        if (removed < 0) {
+            return this;
+        }
+        List<String> nextWords = new ArrayList<>(words);
+        nextWords.remove(removed);
+        int[] kept = keptTemplates(word);
+        int[] nextIds = new int[kept.length];
+        int[] nextLengths = new int[kept.length];
+        long frames = 0;
+        for (int k = 0; k < kept.length; k++) {
+            int id = wordIds[kept[k]];
+            nextIds[k] = id > removed ? id - 1 : id;
+            nextLengths[k] = lengths[kept[k]];
+            frames += nextLengths[k];
+        }
+        ByteBuffer next = allocate(Math.toIntExact(frames * dim * encoding.bytes), isDirect());
+        // 相邻的保留模板在缓冲区中也相邻，合并为一次复制
+        for (int k = 0; k < kept.length; ) {
+            int end = k + 1;
+            while (end < kept.length && kept[end] == kept[end - 1] + 1) {
+                end++;
+            }
+            next.put(slice(kept[k], kept[end - 1] + 1));
+            k = end;
+        }
+        next.clear();
+        return new TemplateStore(nextWords, nextIds, nextLengths, dim, encoding, next, scales, biases);
+    }
+
+    /**
+     * @return 不属于该词的模板编号，从小到大排列
+     */
+    int[] keptTemplates(String word) {
+        int removed = words.indexOf(word);
+        int count = 0;
+        int[] kept = new int[size()];
+        for (int t = 0; t < size(); t++) {
+            if (wordIds[t] != removed) {
+                kept[count++] = t;
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    private static int wordIndex(List<String> words, String word) {
+        int index = words.indexOf(word);
+        if (index < 0) {
+            words.add(word);
+            index = words.size() - 1;
+        }
+        return index;
+    }
+
+    /**
+     * @return 模板 [from, to) 的特征数据
+     */
+    private ByteBuffer slice(int from, int to) {
+        ByteBuffer source = values.duplicate();
+        if (from == to) {
+            source.limit(0);
+            return source;
+        }
+        long start = (long) offsets[from] * dim * encoding.bytes;
+        long end = ((long) offsets[to - 1] + lengths[to - 1]) * dim * encoding.bytes;
+        source.clear();
+        source.position(Math.toIntExact(start));
+        source.limit(Math.toIntExact(end));
+        return source;
+    }
+
+    private static ByteBuffer allocate(int bytes, boolean direct) {
+        ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    int size() {
+        return lengths.length;
+    }
+
+    int dim() {
+        return dim;
+    }
+
+    int length(int t) {
+        return lengths[t];
+    }
+
+    int wordId(int t) {
+        return wordIds[t];
+    }
+
+    String word(int t) {
+        return words.get(wordIds[t]);
+    }
+
+    List<String> words() {
+        return words;
+    }
+
+    Encoding encoding() {
+        return encoding;
+    }
+
+    boolean isDirect() {
+        return values.isDirect();
+    }
+
+    long frameCount() {
+        return size() == 0 ? 0 : (long) offsets[size() - 1] + lengths[size() - 1];
+    }
+
+    /**
+     * 特征数据占用的字节数
+     */
+    long valueBytes() {
+        return frameCount() * dim * encoding.bytes;
+    }
+
+    /**
+     * 第 t 个模板第 i 帧第 d 维的值
+     */
+    double get(int t, int i, int d) {
+        int index = (offsets[t] + i) * dim + d;
+        switch (encoding) {
+            case FLOAT64:
+                return values.getDouble(index * 8);
+            case FLOAT32:
+                return values.getFloat(index * 4);
+            default:
+                return biases[d] + values.get(index) * scales[d];
+        }
+    }
+
+    /**
+     * 把第 t 个模板临时解码为 DTW 使用的连续存储，调用方用完即弃，不应长期持有
+     *
+     * @param t 模板编号
+     * @return 解码后的序列
+     */
+    LocalDistance.Sequence sequence(int t) {
+        double[][] columns = new double[dim + 1][lengths[t]];
+        decode(t, columns);
+        return new LocalDistance.Sequence(columns, lengths[t], dim);
+    }
+
+    /**
+     * 把第 t 个模板解码到调用方提供的按维度优先存放的数组中，并计算每帧的平方范数
+     *
+     * @param t       模板编号
+     * @param columns 输出，dim + 1 行，每行长度不小于模板帧数，格式同 LocalDistance.Sequence
+     */
+    void decode(int t, double[][] columns) {
+        int m = lengths[t];
+        ByteBuffer source = slice(t, t + 1).order(ByteOrder.LITTLE_ENDIAN);
+        // 先整块读出再转置，比逐个值按下标读取快得多
+        switch (encoding) {
+            case FLOAT64: {
+                double[] raw = new double[m * dim];
+                source.asDoubleBuffer().get(raw);
+                for (int d = 0; d < dim; d++) {
+                    double[] column = columns[d];
+                    for (int i = 0, k = d; i < m; i++, k += dim) {
+                        column[i] = raw[k];
+                    }
+                }
+                break;
+            }
+            case FLOAT32: {
+                float[] raw = new float[m * dim];
+                source.asFloatBuffer().get(raw);
+                for (int d = 0; d < dim; d++) {
+                    double[] column = columns[d];
+                    for (int i = 0, k = d; i < m; i++, k += dim) {
+                        column[i] = raw[k];
+                    }
+                }
+                break;
+            }
+            default: {
+                byte[] raw = new byte[m * dim];
+                source.get(raw);
+                for (int d = 0; d < dim; d++) {
+                    double[] column = columns[d];
+                    double bias = biases[d];
+                    double scale = scales[d];
+                    for (int i = 0, k = d; i < m; i++, k += dim) {
+                        column[i] = bias + raw[k] * scale;
+                    }
+                }
+                break;
+            }
+        }
+        LocalDistance.Sequence.computeNorms(columns, m, dim);
+    }
+
+    /**
+     * 两份存储的精度和量化参数是否相同，相同时同一模板解码出的数值完全一致
+     */
+    boolean sameQuantization(TemplateStore other) {
+        return encoding == other.encoding && Arrays.equals(scales, other.scales) && Arrays.equals(biases, other.biases);
+    }
+
+    /**
+     * 把第 t 个模板解码为逐帧存放的特征
+     */
+    double[][] frames(int t) {
+        double[][] frames = new double[lengths[t]][dim];
+        for (int i = 0; i < frames.length; i++) {
+            for (int d = 0; d < dim; d++) {
+                frames[i][d] = get(t, i, d);
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * 把所有模板解码为逐帧存放的特征
+     */
+    List<double[][]> frames() {
+        List<double[][]> templates = new ArrayList<>(size());
+        for (int t = 0; t < size(); t++) {
+            templates.add(frames(t));
+        }
+        return templates;
+    }
+}
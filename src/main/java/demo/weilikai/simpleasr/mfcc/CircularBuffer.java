@@ -30,6 +30,24 @@ public class CircularBuffer {
         return writePosition;
     }
 
+    public int write(short[] data) {
+        int length = data.length;
+        for (int i = 0; i < length; i++) {
+            buffer[writePosition] = data[i];
+            writePosition = (writePosition + 1) % capacity;
+            if (writePosition == readPosition) {
+                readPosition = (readPosition + 1) % capacity;
+            }
+        }
+        return writePosition;
+    }
+
+    public int skip(int count) {
+        int length = Math.min(count, available());
+        readPosition = (readPosition + length) % capacity;
+        return length;
+    }
+
     public int read(double[] destination) {
         int length = Math.min(destination.length, available());
         for (int i = 0; i < length; i++) {
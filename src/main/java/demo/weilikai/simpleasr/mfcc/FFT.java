@@ -1,46 +1,178 @@
 package demo.weilikai.simpleasr.mfcc;
 
+/**
+ * 基 2 迭代 FFT
+ * <p>
+ * 旋转因子和位反转表在构造时计算一次，变换在调用方提供的 double[] 实部/虚部数组上原地进行，不分配任何对象。
+ * 长度为 n 的实数输入通过一次 n/2 点的复数 FFT 完成。实例内部带有工作缓存，不是线程安全的。
+ */
 public class FFT {
 
-    public static Complex[] fft(double[] x) {
-        int n = x.length;
+    private final int n;
+    private final double[] cos; // cos(2πk/n)，k < n/2
+    private final double[] sin; // sin(2πk/n)，k < n/2
+    private final int[] bitReverse; // n 点复数 FFT 的位反转表
+    private final int[] halfBitReverse; // n/2 点复数 FFT 的位反转表
+    private final double[] workRe;
+    private final double[] workIm;
+
+    /**
+     * @param n 变换长度，必须是 2 的幂
+     */
+    public FFT(int n) {
+        // Check if the input length is a power of 2
+        if (n < 2 || Integer.bitCount(n) != 1) {
+            throw new IllegalArgumentException("Input length must be a power of 2");
+        }
+        this.n = n;
+        cos = new double[n / 2];
+        sin = new double[n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            double theta = 2 * Math.PI * k / n;
+            cos[k] = Math.cos(theta);
+            sin[k] = Math.sin(theta);
+        }
+        bitReverse = bitReverseTable(n);
+        halfBitReverse = bitReverseTable(n / 2);
+        workRe = new double[n / 2];
+        workIm = new double[n / 2];
+    }
 
-        // Base case: a single sample, mfcc.FFT is the sample itself
-        if (n == 1) {
-            return new Complex[]{new Complex(x[0], 0)};
+    public int size() {
+        return n;
+    }
+
+    private static int[] bitReverseTable(int size) {
+        int bits = Integer.numberOfTrailingZeros(size);
+        int[] table = new int[size];
+        for (int i = 0; i < size; i++) {
+            table[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
         }
+        return table;
+    }
 
-        // Check if the input length is a power of 2
-        if (Integer.bitCount(n) != 1) {
-            throw new IllegalArgumentException("Input length must be a power of 2");
+    /**
+     * 原地计算 n 点复数 FFT
+     *
+     * @param re 实部，长度为 n
+     * @param im 虚部，长度为 n
+     */
+    public void transform(double[] re, double[] im) {
+        transform(re, im, n, bitReverse);
+    }
+
+    /**
+     * 原地计算 size 点复数 FFT，size 为 n 或 n/2，旋转因子按步长从 n 点表中取
+     */
+    private void transform(double[] re, double[] im, int size, int[] reverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reverse[i];
+            if (j > i) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
         }
 
-        // Split input into even and odd parts
-        double[] even = new double[n / 2];
-        double[] odd = new double[n / 2];
-        for (int i = 0; i < n / 2; i++) {
-            even[i] = x[2 * i];
-            odd[i] = x[2 * i + 1];
+        for (int len = 2; len <= size; len <<= 1) {
+            int half = len / 2;
+            int step = n / len;
+            for (int i = 0; i < size; i += len) {
+                for (int k = 0; k < half; k++) {
+                    double wr = cos[k * step];
+                    double wi = -sin[k * step];
+                    int a = i + k;
+                    int b = a + half;
+                    double tr = wr * re[b] - wi * im[b];
+                    double ti = wr * im[b] + wi * re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
         }
+    }
+
+    /**
+     * 计算 n 点实数序列的能量谱 |X[k]|²，结果写入调用方提供的数组
+     * <p>
+     * 把偶数点和奇数点分别作为实部和虚部做一次 n/2 点复数 FFT，再拆分出前 n/2+1 个频点，其余频点由共轭对称得到。
+     *
+     * @param x        实数输入，长度为 n
+     * @param energies 输出的能量谱，长度为 n
+     */
+    public void computeEnergies(double[] x, double[] energies) {
+        int half = n / 2;
+        double[] re = workRe;
+        double[] im = workIm;
+        for (int m = 0; m < half; m++) {
+            re[m] = x[2 * m];
+            im[m] = x[2 * m + 1];
+        }
+        transform(re, im, half, halfBitReverse);
+
+        // X[0] 和 X[n/2] 都是实数
+        double dc = re[0] + im[0];
+        double nyquist = re[0] - im[0];
+        energies[0] = dc * dc;
+        energies[half] = nyquist * nyquist;
+
+        for (int k = 1; k < half; k++) {
+            // A = Z[k], B = conj(Z[n/2-k])，偶数部分 E = (A+B)/2，奇数部分 O = (A-B)/(2i)
+            double ar = re[k];
+            double ai = im[k];
+            double br = re[half - k];
+            double bi = -im[half - k];
+            double evenRe = (ar + br) / 2;
+            double evenIm = (ai + bi) / 2;
+            double oddRe = (ai - bi) / 2;
+            double oddIm = -(ar - br) / 2;
+            // X[k] = E + W^k * O，W = e^(-2πi/n)
+            double wr = cos[k];
+            double wi = -sin[k];
+            double xr = evenRe + wr * oddRe - wi * oddIm;
+            double xi = evenIm + wr * oddIm + wi * oddRe;
+            energies[k] = xr * xr + xi * xi;
+            energies[n - k] = energies[k];
+        }
+    }
 
-        // Compute mfcc.FFT of even and odd parts
-        Complex[] evenFFT = fft(even);
-        Complex[] oddFFT = fft(odd);
+    public static Complex[] fft(double[] x) {
+        int n = x.length;
 
-        // Combine even and odd mfcc.FFT results
-        Complex[] result = new Complex[n];
-        for (int i = 0; i < n / 2; i++) {
-            double theta = -2 * Math.PI * i / n;
-            Complex t = new Complex(Math.cos(theta), Math.sin(theta)).multiply(oddFFT[i]);
-            result[i] = evenFFT[i].add(t);
-            result[i + n / 2] = evenFFT[i].subtract(t);
+        // Base case: a single sample, mfcc.FFT is the sample itself
+        if (n == 1) {
+            return new Complex[]{new Complex(x[0], 0)};
         }
 
+        double[] re = x.clone();
+        double[] im = new double[n];
+        new FFT(n).transform(re, im);
+        Complex[] result = new Complex[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = new Complex(re[i], im[i]);
+        }
         return result;
     }
 
     public static double[] computeFftEnergies(double[] x) {
-        return computeEnergies(fft(x));
+        double[] energies = new double[x.length];
+        computeFftEnergies(x, energies);
+        return energies;
+    }
+
+    /**
+     * 计算实数序列的能量谱，结果写入调用方提供的数组；需要反复计算时应复用 FFT 实例
+     *
+     * @param x        实数输入，长度必须是 2 的幂
+     * @param energies 输出的能量谱，长度与 x 相同
+     */
+    public static void computeFftEnergies(double[] x, double[] energies) {
+        new FFT(x.length).computeEnergies(x, energies);
     }
 
     public static double[] computeEnergies(Complex[] fftResult) {
@@ -1,114 +1,119 @@
 package demo.weilikai.simpleasr.mfcc;
 
+import demo.weilikai.simpleasr.util.Kernels;
+
 import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.IntStream;
 
 public class MFCC {
 
+    public static final int SAMPLE_RATE = 16000; // 采样率（赫兹）
+    public static final int FRAME_SIZE = 400; // 每帧采样点数（25ms）
+    public static final int FRAME_SHIFT = 160; // 帧移采样点数（10ms）
+    public static final int NUM_FILTERS = 26; // 梅尔滤波器个数
+    public static final int NUM_COEFFICIENTS = 13; // 保留的MFCC系数个数
+
     /**
      * 自动处理步长的MFCC函数
      */
     public List<double[]> mfccWithStride(short[] data, int stride) {
-        double[] doubleData = IntStream.range(0, data.length).mapToDouble(i -> (double) (data[i])).toArray();
-        return mfccWithStride(doubleData, stride);
+        mBuffer.write(data);
+        return extractAvailableFrames();
+    }
+
+    CircularBuffer mBuffer;
+    private final MfccConfig mConfig;
+    private final FFT mFft;
+    private final Kernels mKernels = Kernels.get();
+
+    // 每帧复用的工作缓存
+    private final double[] mFrame;
+    private final double[] mWindowed;
+    private final double[] mFftEnergies;
+    private final double[] mMelEnergy;
+
+    public MFCC() {
+        this(1024 * 1024);
+    }
+
+    /**
+     * @param bufferCapacity 缓存的采样点数，须大于一帧的长度加上每次送入的采样点数
+     */
+    public MFCC(int bufferCapacity) {
+        this(MfccConfig.DEFAULT, bufferCapacity);
     }
 
-    CircularBuffer mBuffer = new CircularBuffer(1024 * 1024);
+    /**
+     * @param config         特征提取配置，可被多个实例共享
+     * @param bufferCapacity 缓存的采样点数，须大于一帧的长度加上每次送入的采样点数
+     */
+    public MFCC(MfccConfig config, int bufferCapacity) {
+        mConfig = config;
+        mBuffer = new CircularBuffer(bufferCapacity);
+        mFft = new FFT(config.fftSize);
+        mFrame = new double[config.frameSize];
+        mWindowed = new double[config.fftSize];
+        mFftEnergies = new double[config.fftSize];
+        mMelEnergy = new double[config.numFilters];
+    }
 
-    private List<double[]> mfccWithStride(double[] data, int stride) {
+    private List<double[]> extractAvailableFrames() {
         List<double[]> out = new ArrayList<>();
-        mBuffer.write(data);
-        while (mBuffer.available() > 400) {
+        while (mBuffer.available() > mConfig.frameSize) {
             mBuffer.mark();
-            double[] frame = new double[400];
-            mBuffer.read(frame);
-            double[] mfcc = mfcc(frame);
+            mBuffer.read(mFrame);
+            double[] mfcc = new double[mConfig.numCoefficients];
+            mfcc(mFrame, mfcc);
             out.add(mfcc);
             mBuffer.reset();
-            mBuffer.read(new double[10 * 16]);
+            mBuffer.skip(mConfig.frameShift);
         }
         return out;
     }
 
-    private double[] mfcc(double[] frame) {
+    /**
+     * 计算一帧的MFCC，只使用预先算好的表和工作缓存，不分配内存
+     *
+     * @param frame 一帧采样
+     * @param mfcc  输出的MFCC系数
+     */
+    private void mfcc(double[] frame, double[] mfcc) {
         // 1. 预加重
-        double[] preEmphasizedSignal = step1ApplyPreEmphasis(frame, 0.97f);
-
-        // 2. 加窗
-        double[] windowedSignal = step2ApplyWindowing(preEmphasizedSignal);
+        // 2. 加窗，FFT 的输入长度为512，帧长之后的部分始终为0
+        step12ApplyPreEmphasisAndWindowing(frame, mWindowed);
 
         // 3. FFT，原始信号的长度为400（每帧25ms在16k采样时有400个采样点)，故需要先将其扩至512的长度
-        double[] windowedSignal512 = new double[512];
-        System.arraycopy(windowedSignal, 0, windowedSignal512, 0, windowedSignal.length);
-        double[] fftEnergies = step3ComputeFft(windowedSignal512);
+        mFft.computeEnergies(mWindowed, mFftEnergies);
 
         // 4. 使用梅尔滤波器进行处理
-        double[] melSpectrum = step4MelFilterBankProcessing(fftEnergies);
+        mConfig.filterBank.process(mFftEnergies, mMelEnergy);
 
         // 5. 取对数（使其更加符合人耳听觉结构）、执行离散余弦变换 (DCT)
         // 6. 保留所需数量的MFCC系数
-        double[] logMelSpectrum = step5LogCompression(melSpectrum);
-        double[] mfcc = step6DiscreteCosineTransform(logMelSpectrum, 13);
-        return mfcc;
-    }
-
-    private double[] step1ApplyPreEmphasis(double[] signal, double alpha) {
-        double[] preEmphasizedSignal = new double[signal.length];
-        preEmphasizedSignal[0] = signal[0];
-
-        for (int i = 1; i < signal.length; i++) {
-            preEmphasizedSignal[i] = signal[i] - alpha * signal[i - 1];
-        }
-
-        return preEmphasizedSignal;
+        step5LogCompression(mMelEnergy);
+        step6DiscreteCosineTransform(mMelEnergy, mfcc);
     }
 
-    private double[] step2ApplyWindowing(double[] signal) {
-        int frameSize = 400; // 25ms at 16kHz
-        double[] windowedSignal = new double[frameSize];
-
-        // 加汉明窗
-        for (int n = 0; n < frameSize; n++) {
-            windowedSignal[n] = signal[n] * (0.54 - 0.46 * Math.cos((2 * Math.PI * n) / (frameSize - 1)));
+    private void step12ApplyPreEmphasisAndWindowing(double[] signal, double[] windowedSignal) {
+        double alpha = mConfig.preEmphasis;
+        double[] window = mConfig.window;
+        windowedSignal[0] = signal[0] * window[0];
+        for (int n = 1; n < signal.length; n++) {
+            windowedSignal[n] = (signal[n] - alpha * signal[n - 1]) * window[n];
         }
-
-        return windowedSignal;
-    }
-
-    private double[] step3ComputeFft(double[] s2512) {
-        return FFT.computeFftEnergies(s2512);
-    }
-
-    private double[] step4MelFilterBankProcessing(double[] s3) {
-        return MelFilterBank.processing(s3);
     }
 
-    private double[] step5LogCompression(double[] melEnergy) {
-        int numFilters = melEnergy.length;
-        double[] logMelEnergy = new double[numFilters];
-
-        for (int i = 0; i < numFilters; i++) {
-            logMelEnergy[i] = Math.log10(melEnergy[i]);
+    private void step5LogCompression(double[] melEnergy) {
+        for (int i = 0; i < melEnergy.length; i++) {
+            melEnergy[i] = Math.log10(melEnergy[i]);
         }
-
-        return logMelEnergy;
     }
 
-    private double[] step6DiscreteCosineTransform(double[] logMelEnergy, int numCoefficients) {
-        int numFilters = logMelEnergy.length;
-        double[] mfcc = new double[numCoefficients];
-
-        for (int k = 0; k < numCoefficients; k++) {
-            double sum = 0;
-            for (int n = 0; n < numFilters; n++) {
-                double angle = (Math.PI / numFilters) * (n + 0.5) * k;
-                sum += logMelEnergy[n] * Math.cos(angle);
-            }
-            mfcc[k] = sum * Math.sqrt(2.0 / numFilters);
+    private void step6DiscreteCosineTransform(double[] logMelEnergy, double[] mfcc) {
+        double[][] dct = mConfig.dct;
+        for (int k = 0; k < mfcc.length; k++) {
+            mfcc[k] = mKernels.dot(logMelEnergy, 0, dct[k], 0, logMelEnergy.length) * mConfig.dctScale;
         }
-
-        return mfcc;
     }
 
-}
\ No newline at end of file
+}
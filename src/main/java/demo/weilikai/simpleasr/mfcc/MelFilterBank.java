@@ -1,5 +1,14 @@
 package demo.weilikai.simpleasr.mfcc;
 
+import demo.weilikai.simpleasr.util.Kernels;
+
+import java.util.Arrays;
+
+/**
+ * 梅尔滤波器组
+ * <p>
+ * 三角滤波器在构造时计算一次，每个滤波器只保存非零区间的起止频点和权重。
+ */
 final class MelFilterBank {
     private final int numFilters;
     private final double lowerFrequency;
@@ -7,6 +16,10 @@ final class MelFilterBank {
     private final int numFftBins;
     private final double sampleRate;
 
+    private final int[] filterStarts; // 每个滤波器第一个非零权重的频点
+    private final double[][] filterWeights; // 每个滤波器从起始频点开始的连续权重
+    private final Kernels kernels = Kernels.get();
+
     public MelFilterBank() {
         this(26, 0, 8000, 512, 16000);
     }
@@ -17,6 +30,24 @@ final class MelFilterBank {
         this.upperFrequency = upperFrequency;
         this.numFftBins = numFftBins;
         this.sampleRate = sampleRate;
+
+        double[] melFrequencies = melSpace(lowerFrequency, upperFrequency, numFilters + 2);
+        double[] fftFrequencies = fftSpace(numFftBins, sampleRate);
+        filterStarts = new int[numFilters];
+        filterWeights = new double[numFilters][];
+        for (int i = 1; i <= numFilters; i++) {
+            double[] filter = createFilter(fftFrequencies, melFrequencies, i);
+            int start = 0;
+            while (start < numFftBins && filter[start] == 0) {
+                start++;
+            }
+            int end = numFftBins;
+            while (end > start && filter[end - 1] == 0) {
+                end--;
+            }
+            filterStarts[i - 1] = start;
+            filterWeights[i - 1] = Arrays.copyOfRange(filter, start, end);
+        }
     }
 
     static MelFilterBank DEFAULT_MEL_FILTER_BACK = new MelFilterBank();
@@ -25,19 +56,27 @@ final class MelFilterBank {
         return DEFAULT_MEL_FILTER_BACK.process(s3);
     }
 
+    public int numFilters() {
+        return numFilters;
+    }
+
     public double[] process(double[] energySpectrum) {
         double[] melEnergy = new double[numFilters];
-        double[] melFrequencies = melSpace(lowerFrequency, upperFrequency, numFilters + 2);
-        double[] fftFrequencies = fftSpace(numFftBins, sampleRate);
+        process(energySpectrum, melEnergy);
+        return melEnergy;
+    }
 
-        for (int i = 1; i <= numFilters; i++) {
-            double[] filter = createFilter(fftFrequencies, melFrequencies, i);
-            for (int j = 0; j < numFftBins; j++) {
-                melEnergy[i - 1] += energySpectrum[j] * filter[j];
-            }
+    /**
+     * 计算各滤波器的能量，结果写入调用方提供的数组
+     *
+     * @param energySpectrum 能量谱
+     * @param melEnergy      输出的梅尔能量，长度为滤波器个数
+     */
+    public void process(double[] energySpectrum, double[] melEnergy) {
+        for (int i = 0; i < numFilters; i++) {
+            double[] weights = filterWeights[i];
+            melEnergy[i] = kernels.dot(energySpectrum, filterStarts[i], weights, 0, weights.length);
         }
-
-        return melEnergy;
     }
 
     private double[] createFilter(double[] fftFrequencies, double[] melFrequencies, int filterIndex) {
@@ -77,4 +116,3 @@ final class MelFilterBank {
         return 700.0 * (Math.pow(10, mel / 2595.0) - 1.0);
     }
 }
-
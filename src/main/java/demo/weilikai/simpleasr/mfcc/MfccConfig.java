@@ -0,0 +1,93 @@
+package demo.weilikai.simpleasr.mfcc;
+
+/**
+ * MFCC 特征提取的配置
+ * <p>
+ * 构造时一次性算好汉明窗、稀疏梅尔滤波器组和 DCT 矩阵，之后可被任意多个 MFCC 实例只读共享。
+ */
+public final class MfccConfig {
+
+    public static final MfccConfig DEFAULT = new MfccConfig();
+
+    final int sampleRate;
+    final int frameSize;
+    final int frameShift;
+    final int fftSize;
+    final int numFilters;
+    final int numCoefficients;
+    final double preEmphasis;
+
+    final double[] window; // 汉明窗
+    final MelFilterBank filterBank;
+    final double[][] dct; // dct[k][n] = cos(π / numFilters * (n + 0.5) * k)
+    final double dctScale;
+
+    public MfccConfig() {
+        this(MFCC.SAMPLE_RATE, MFCC.FRAME_SIZE, MFCC.FRAME_SHIFT, 512, MFCC.NUM_FILTERS, MFCC.NUM_COEFFICIENTS, 0.97f);
+    }
+
+    /**
+     * @param sampleRate      采样率（赫兹）
+     * @param frameSize       每帧采样点数
+     * @param frameShift      帧移采样点数
+     * @param fftSize         FFT 长度，必须是不小于帧长的 2 的幂
+     * @param numFilters      梅尔滤波器个数
+     * @param numCoefficients 保留的MFCC系数个数
+     * @param preEmphasis     预加重系数
+     */
+    public MfccConfig(int sampleRate, int frameSize, int frameShift, int fftSize, int numFilters, int numCoefficients, double preEmphasis) {
+        if (fftSize < frameSize || Integer.bitCount(fftSize) != 1) {
+            throw new IllegalArgumentException("fftSize 必须是不小于帧长的 2 的幂");
+        }
+        this.sampleRate = sampleRate;
+        this.frameSize = frameSize;
+        this.frameShift = frameShift;
+        this.fftSize = fftSize;
+        this.numFilters = numFilters;
+        this.numCoefficients = numCoefficients;
+        this.preEmphasis = preEmphasis;
+
+        window = new double[frameSize];
+        for (int n = 0; n < frameSize; n++) {
+            window[n] = 0.54 - 0.46 * Math.cos((2 * Math.PI * n) / (frameSize - 1));
+        }
+
+        filterBank = new MelFilterBank(numFilters, 0, sampleRate / 2.0, fftSize, sampleRate);
+
+        dct = new double[numCoefficients][numFilters];
+        for (int k = 0; k < numCoefficients; k++) {
+            for (int n = 0; n < numFilters; n++) {
+                dct[k][n] = Math.cos((Math.PI / numFilters) * (n + 0.5) * k);
+            }
+        }
+        dctScale = Math.sqrt(2.0 / numFilters);
+    }
+
+    public int sampleRate() {
+        return sampleRate;
+    }
+
+    public int frameSize() {
+        return frameSize;
+    }
+
+    public int frameShift() {
+        return frameShift;
+    }
+
+    public int fftSize() {
+        return fftSize;
+    }
+
+    public int numFilters() {
+        return numFilters;
+    }
+
+    public int numCoefficients() {
+        return numCoefficients;
+    }
+
+    public double preEmphasis() {
+        return preEmphasis;
+    }
+}
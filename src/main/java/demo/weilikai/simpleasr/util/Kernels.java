@@ -0,0 +1,115 @@
+package demo.weilikai.simpleasr.util;
+
+/**
+ * 前端和解码器中的数值热点循环
+ * <p>
+ * 默认实现是普通的标量循环，可在 Java 8 上运行。在 Java 17 及以上版本中，多版本 JAR 的
+ * META-INF/versions/17 里另有一份基于 jdk.incubator.vector 的实现，启动时若能加载（需要
+ * --add-modules jdk.incubator.vector）则自动选用，否则退回标量实现。
+ * 也可以用系统属性 simpleasr.kernels=scalar 强制使用标量实现。
+ * <p>
+ * 向量实现的累加顺序与标量实现不同，结果可能在最后几位有差别。
+ */
+public abstract class Kernels {
+
+    private static final Kernels INSTANCE = select();
+
+    /**
+     * 当前进程选用的实现
+     */
+    public static Kernels get() {
+        return INSTANCE;
+    }
+
+    private static Kernels select() {
+        if (!"scalar".equals(System.getProperty("simpleasr.kernels"))) {
+            try {
+                Class<?> type = Class.forName(Kernels.class.getPackage().getName() + ".VectorKernels");
+                return (Kernels) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // 运行在 Java 17 以下、不是从多版本 JAR 加载，或者没有加入 jdk.incubator.vector 模块
+            }
+        }
+        return new Scalar();
+    }
+
+    /**
+     * 实现的名称，用于日志
+     */
+    public abstract String name();
+
+    /**
+     * 计算 a[aOffset, aOffset + length) 与 b[bOffset, bOffset + length) 的点积
+     */
+    public abstract double dot(double[] a, int aOffset, double[] b, int bOffset, int length);
+
+    /**
+     * y[i] += alpha * x[i]，from <= i < to
+     */
+    public abstract void axpy(double alpha, double[] x, double[] y, int from, int to);
+
+    /**
+     * x[i] = sqrt(|x[i]|)，from <= i < to
+     */
+    public abstract void sqrtAbs(double[] x, int from, int to);
+
+    /**
+     * x[i] = |x[i]|，from <= i < to
+     */
+    public abstract void abs(double[] x, int from, int to);
+
+    /**
+     * 计算 PCM 采样值的平方和
+     */
+    public abstract double sumOfSquares(short[] samples);
+
+    /**
+     * 标量实现
+     */
+    static class Scalar extends Kernels {
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+
+        @Override
+        public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+            double sum = 0;
+            for (int i = 0; i < length; i++) {
+                sum += a[aOffset + i] * b[bOffset + i];
+            }
+            return sum;
+        }
+
+        @Override
+        public void axpy(double alpha, double[] x, double[] y, int from, int to) {
+            for (int i = from; i < to; i++) {
+                y[i] += alpha * x[i];
+            }
+        }
+
+        @Override
+        public void sqrtAbs(double[] x, int from, int to) {
+            for (int i = from; i < to; i++) {
+                x[i] = Math.sqrt(Math.abs(x[i]));
+            }
+        }
+
+        @Override
+        public void abs(double[] x, int from, int to) {
+            for (int i = from; i < to; i++) {
+                x[i] = Math.abs(x[i]);
+            }
+        }
+
+        @Override
+        public double sumOfSquares(short[] samples) {
+            double sum = 0;
+            for (short s : samples) {
+                sum += (double) s * s;
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package demo.weilikai.simpleasr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * 基于 jdk.jfr 的解码事件，只打包在多版本 JAR 的 META-INF/versions/17 中，由 AsrEvents 在运行时选用
+ */
+final class JfrAsrEvents extends AsrEvents {
+
+    @Name("demo.weilikai.simpleasr.Decode")
+    @Label("Utterance Decode")
+    @Description("一句话从说话结束到给出识别结果")
+    @Category("SimpleASR")
+    @StackTrace(false)
+    static final class DecodeEvent extends Event {
+        @Label("Session")
+        String sessionId;
+
+        @Label("Frames")
+        @Description("MFCC 帧数，每帧 10ms")
+        int frames;
+
+        @Label("Online")
+        boolean online;
+
+        @Label("Speculative")
+        @Description("是否采用了说话结束前推测解码的结果")
+        boolean speculative;
+
+        @Label("Result")
+        @Description("识别结果，拒识时为空")
+        String result;
+    }
+
+    @Override
+    Object beginDecode() {
+        DecodeEvent event = new DecodeEvent();
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endDecode(Object event, String sessionId, int frames, boolean online, boolean speculative, String result) {
+        if (null == event) {
+            return;
+        }
+        DecodeEvent decode = (DecodeEvent) event;
+        decode.end();
+        if (decode.shouldCommit()) {
+            decode.sessionId = sessionId;
+            decode.frames = frames;
+            decode.online = online;
+            decode.speculative = speculative;
+            decode.result = result;
+            decode.commit();
+        }
+    }
+}
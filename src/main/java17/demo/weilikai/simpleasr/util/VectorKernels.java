@@ -0,0 +1,99 @@
+package demo.weilikai.simpleasr.util;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * 基于 jdk.incubator.vector 的实现，按当前 CPU 支持的最宽向量（AVX2 为 4 个 double，AVX-512 为 8 个）计算
+ * <p>
+ * 只存在于多版本 JAR 的 META-INF/versions/17 中，由 Kernels 在启动时通过反射加载。
+ */
+final class VectorKernels extends Kernels {
+
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    // 与 DOUBLES 通道数相同的 short 向量，用于逐通道转换为 double
+    private static final VectorSpecies<Short> SHORTS =
+            VectorSpecies.of(short.class, VectorShape.forBitSize(DOUBLES.length() * Short.SIZE));
+
+    VectorKernels() {
+        if (DOUBLES.length() < 2) {
+            throw new UnsupportedOperationException("当前平台不支持 double 向量");
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector-" + DOUBLES.vectorBitSize();
+    }
+
+    @Override
+    public double dot(double[] a, int aOffset, double[] b, int bOffset, int length) {
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int bound = DOUBLES.loopBound(length); i < bound; i += DOUBLES.length()) {
+            DoubleVector va = DoubleVector.fromArray(DOUBLES, a, aOffset + i);
+            DoubleVector vb = DoubleVector.fromArray(DOUBLES, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public void axpy(double alpha, double[] x, double[] y, int from, int to) {
+        DoubleVector va = DoubleVector.broadcast(DOUBLES, alpha);
+        int i = from;
+        for (int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()) {
+            DoubleVector vx = DoubleVector.fromArray(DOUBLES, x, i);
+            DoubleVector vy = DoubleVector.fromArray(DOUBLES, y, i);
+            vx.fma(va, vy).intoArray(y, i);
+        }
+        for (; i < to; i++) {
+            y[i] += alpha * x[i];
+        }
+    }
+
+    @Override
+    public void sqrtAbs(double[] x, int from, int to) {
+        int i = from;
+        for (int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, x, i).abs().sqrt().intoArray(x, i);
+        }
+        for (; i < to; i++) {
+            x[i] = Math.sqrt(Math.abs(x[i]));
+        }
+    }
+
+    @Override
+    public void abs(double[] x, int from, int to) {
+        int i = from;
+        for (int bound = from + DOUBLES.loopBound(to - from); i < bound; i += DOUBLES.length()) {
+            DoubleVector.fromArray(DOUBLES, x, i).abs().intoArray(x, i);
+        }
+        for (; i < to; i++) {
+            x[i] = Math.abs(x[i]);
+        }
+    }
+
+    @Override
+    public double sumOfSquares(short[] samples) {
+        DoubleVector acc = DoubleVector.zero(DOUBLES);
+        int i = 0;
+        for (int bound = SHORTS.loopBound(samples.length); i < bound; i += SHORTS.length()) {
+            DoubleVector v = (DoubleVector) ShortVector.fromArray(SHORTS, samples, i)
+                    .convertShape(VectorOperators.S2D, DOUBLES, 0);
+            acc = v.fma(v, acc);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < samples.length; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return sum;
+    }
+}
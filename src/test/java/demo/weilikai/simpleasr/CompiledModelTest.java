@@ -0,0 +1,121 @@
+package demo.weilikai.simpleasr;
+
+import demo.weilikai.simpleasr.mfcc.MFCC;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompiledModelTest {
+
+    private static final int DIM = MFCC.NUM_COEFFICIENTS;
+    private static final List<String> WORDS = Arrays.asList("小度小度", "确定", "取消");
+
+    private static TemplateStore randomStore(Random random, int count) {
+        List<double[][]> templates = new ArrayList<>();
+        int[] wordIds = new int[count];
+        for (int t = 0; t < count; t++) {
+            double[][] frames = new double[10 + random.nextInt(40)][DIM];
+            for (double[] frame : frames) {
+                for (int d = 0; d < DIM; d++) {
+                    frame[d] = random.nextGaussian() * 5;
+                }
+            }
+            templates.add(frames);
+            wordIds[t] = t % WORDS.size();
+        }
+        return TemplateStore.of(WORDS, wordIds, templates, DIM, TemplateStore.Encoding.FLOAT64, false);
+    }
+
+    private static File tempFile() throws IOException {
+        File file = Files.createTempFile("asr_model", ".bin").toFile();
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static void assertSameTemplates(TemplateStore expected, TemplateStore actual) {
+        assertEquals(expected.words(), actual.words());
+        assertEquals(expected.size(), actual.size());
+        for (int t = 0; t < expected.size(); t++) {
+            assertEquals(expected.wordId(t), actual.wordId(t));
+            assertTrue(Arrays.deepEquals(expected.frames(t), actual.frames(t)), "模板 " + t);
+        }
+    }
+
+    @Test
+    void writeAndLoadRoundTrip() throws IOException {
+        TemplateStore store = randomStore(new Random(1), 9);
+        Dtw dtw = new Dtw(Dtw.Constraint.SAKOE_CHIBA, 0.5);
+        TemplateIndex index = TemplateIndex.build(store, dtw, 3);
+        File file = tempFile();
+        new CompiledModel(store, index, 2).write(file);
+
+        CompiledModel loaded = CompiledModel.load(file);
+        assertSameTemplates(store, loaded.store);
+        assertTrue(loaded.store.isDirect());
+        assertEquals(2, loaded.topK);
+        assertArrayEquals(index.pivots(), loaded.index.pivots());
+        assertArrayEquals(index.table(), loaded.index.table());
+        assertEquals(dtw.config(), loaded.index.dtwConfig());
+        assertTrue(loaded.index.matches(dtw));
+    }
+
+    @Test
+    void writeAndLoadWithoutIndex() throws IOException {
+        TemplateStore store = randomStore(new Random(2), 5);
+        File file = tempFile();
+        new CompiledModel(store, null, 0).write(file);
+
+        CompiledModel loaded = CompiledModel.load(file);
+        assertSameTemplates(store, loaded.store);
+        assertEquals(0, loaded.topK);
+        assertNull(loaded.index);
+    }
+
+    @Test
+    void rewritingLoadedModelKeepsContent() throws IOException {
+        TemplateStore store = randomStore(new Random(3), 6);
+        File file = tempFile();
+        new CompiledModel(store, TemplateIndex.build(store, new Dtw(Dtw.Constraint.ITAKURA, 0), 2), 0).write(file);
+        CompiledModel loaded = CompiledModel.load(file);
+        // 写入临时文件再改名，已映射的旧文件内容不受影响
+        new CompiledModel(loaded.store, loaded.index, 0).write(file);
+        assertSameTemplates(store, loaded.store);
+        CompiledModel reloaded = CompiledModel.load(file);
+        assertSameTemplates(store, reloaded.store);
+        assertArrayEquals(loaded.index.table(), reloaded.index.table());
+    }
+
+    @Test
+    void rejectsInvalidFiles() throws IOException {
+        File file = tempFile();
+        Files.write(file.toPath(), new byte[64]);
+        assertThrows(IOException.class, () -> CompiledModel.load(file));
+
+        new CompiledModel(randomStore(new Random(4), 3), null, 0).write(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.write(new byte[]{(byte) (CompiledModel.VERSION + 1), 0, 0, 0});
+        }
+        assertThrows(IOException.class, () -> CompiledModel.load(file));
+    }
+
+    @Test
+    void rejectsIndexOfAnotherSize() {
+        TemplateStore store = randomStore(new Random(5), 4);
+        TemplateIndex index = TemplateIndex.build(randomStore(new Random(6), 5), new Dtw(Dtw.Constraint.NONE, 0), 2);
+        assertThrows(IllegalArgumentException.class, () -> new CompiledModel(store, index, 0));
+    }
+}
@@ -0,0 +1,142 @@
+package demo.weilikai.simpleasr;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DtwTest {
+
+    private static final int DIM = 13;
+
+    /**
+     * 最初的实现：完整的累计距离矩阵，模板在前、输入在后，帧间距离为 costs[i][j]
+     */
+    private static double fullMatrixDistance(double[][] costs) {
+        int len1 = costs.length;
+        int len2 = costs[0].length;
+        double[][] dtw = new double[len1][len2];
+        dtw[0][0] = costs[0][0];
+        for (int i = 1; i < len1; i++) {
+            dtw[i][0] = dtw[i - 1][0] + costs[i][0];
+        }
+        for (int j = 1; j < len2; j++) {
+            dtw[0][j] = dtw[0][j - 1] + costs[0][j];
+        }
+        for (int i = 1; i < len1; i++) {
+            for (int j = 1; j < len2; j++) {
+                dtw[i][j] = costs[i][j] + Math.min(Math.min(dtw[i - 1][j], dtw[i][j - 1]), dtw[i - 1][j - 1]);
+            }
+        }
+        return dtw[len1 - 1][len2 - 1];
+    }
+
+    /**
+     * 最初的帧间距离：逐维求差的欧氏距离
+     */
+    private static double[][] euclideanCosts(double[][] template, double[][] input) {
+        double[][] costs = new double[template.length][input.length];
+        for (int i = 0; i < template.length; i++) {
+            for (int j = 0; j < input.length; j++) {
+                costs[i][j] = Dtw.calculateEuclideanDistance(template[i], input[j]);
+            }
+        }
+        return costs;
+    }
+
+    /**
+     * 与 Dtw 相同的帧间距离：LocalDistance 按范数展开计算
+     */
+    private static double[][] localCosts(LocalDistance.Sequence template, LocalDistance.Sequence input) {
+        double[][] transposed = new double[input.length][template.length];
+        new LocalDistance(LocalDistance.Metric.EUCLIDEAN).tile(input, 0, input.length, template, 0, template.length, transposed);
+        double[][] costs = new double[template.length][input.length];
+        for (int i = 0; i < template.length; i++) {
+            for (int j = 0; j < input.length; j++) {
+                costs[i][j] = transposed[j][i];
+            }
+        }
+        return costs;
+    }
+
+    private static double[][] randomFeatures(Random random, int frames) {
+        double[][] features = new double[frames][DIM];
+        for (double[] frame : features) {
+            for (int d = 0; d < DIM; d++) {
+                frame[d] = random.nextGaussian() * (d == 0 ? 10 : 3);
+            }
+        }
+        return features;
+    }
+
+    @Test
+    void unconstrainedDistanceEqualsFullMatrix() {
+        Random random = new Random(1);
+        Dtw dtw = new Dtw(Dtw.Constraint.NONE, 0);
+        int[] lengths = {1, 2, 3, 5, 17, 64, 65, 130};
+        for (int n : lengths) {
+            for (int m : lengths) {
+                double[][] input = randomFeatures(random, n);
+                double[][] template = randomFeatures(random, m);
+                LocalDistance.Sequence inputSequence = LocalDistance.Sequence.of(input);
+                LocalDistance.Sequence templateSequence = LocalDistance.Sequence.of(template);
+                double actual = dtw.distance(inputSequence, templateSequence, Double.POSITIVE_INFINITY);
+                // 帧间距离相同时，滚动数组、分块和转置都不改变任何一次加法和比较，结果逐位相同
+                assertEquals(fullMatrixDistance(localCosts(templateSequence, inputSequence)), actual, n + "x" + m);
+                // 帧间距离按范数展开只带来舍入误差
+                double expected = fullMatrixDistance(euclideanCosts(template, input));
+                assertEquals(expected, actual, expected * 1e-9, n + "x" + m);
+            }
+        }
+    }
+
+    @Test
+    void constraintsNeverGoBelowUnconstrained() {
+        Random random = new Random(2);
+        Dtw none = new Dtw(Dtw.Constraint.NONE, 0);
+        Dtw[] constrained = {new Dtw(Dtw.Constraint.SAKOE_CHIBA, 0.1), new Dtw(Dtw.Constraint.SAKOE_CHIBA, 0.5),
+                new Dtw(Dtw.Constraint.ITAKURA, 0)};
+        for (int k = 0; k < 20; k++) {
+            LocalDistance.Sequence input = LocalDistance.Sequence.of(randomFeatures(random, 20 + random.nextInt(60)));
+            LocalDistance.Sequence template = LocalDistance.Sequence.of(randomFeatures(random, 20 + random.nextInt(60)));
+            double exact = none.distance(input, template, Double.POSITIVE_INFINITY);
+            for (Dtw dtw : constrained) {
+                double distance = dtw.distance(input, template, Double.POSITIVE_INFINITY);
+                assertTrue(distance >= exact, dtw.config());
+                assertTrue(distance < Double.POSITIVE_INFINITY, dtw.config());
+            }
+        }
+    }
+
+    @Test
+    void abandonedDistanceExceedsBound() {
+        Random random = new Random(3);
+        Dtw dtw = new Dtw(Dtw.Constraint.SAKOE_CHIBA, 0.5);
+        for (int k = 0; k < 20; k++) {
+            LocalDistance.Sequence input = LocalDistance.Sequence.of(randomFeatures(random, 40));
+            LocalDistance.Sequence template = LocalDistance.Sequence.of(randomFeatures(random, 50));
+            double exact = dtw.distance(input, template, Double.POSITIVE_INFINITY);
+            // 上界不小于真实距离时不会放弃；小于真实距离时返回值超过上界，且不超过真实距离
+            assertEquals(exact, dtw.distance(input, template, exact));
+            double abandoned = dtw.distance(input, template, exact / 2);
+            assertTrue(abandoned > exact / 2 && abandoned <= exact);
+        }
+    }
+
+    @Test
+    void lowerBoundNeverExceedsDistance() {
+        Random random = new Random(4);
+        for (Dtw dtw : new Dtw[]{new Dtw(Dtw.Constraint.NONE, 0), new Dtw(Dtw.Constraint.SAKOE_CHIBA, 0.1),
+                new Dtw(Dtw.Constraint.ITAKURA, 0)}) {
+            for (int k = 0; k < 20; k++) {
+                LocalDistance.Sequence input = LocalDistance.Sequence.of(randomFeatures(random, 20 + random.nextInt(60)));
+                LocalDistance.Sequence template = LocalDistance.Sequence.of(randomFeatures(random, 20 + random.nextInt(60)));
+                double distance = dtw.distance(input, template, Double.POSITIVE_INFINITY);
+                double bound = dtw.lowerBound(input, dtw.envelope(template), Double.POSITIVE_INFINITY);
+                assertTrue(bound <= distance * (1 + 1e-12), dtw.config() + ": " + bound + " > " + distance);
+            }
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package demo.weilikai.simpleasr;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TemplateStoreTest {
+
+    private static final int DIM = 13;
+    private static final List<String> WORDS = Arrays.asList("确定", "取消", "上一页");
+
+    private static List<double[][]> randomTemplates(Random random, int count, double range) {
+        List<double[][]> templates = new ArrayList<>();
+        for (int t = 0; t < count; t++) {
+            double[][] frames = new double[10 + random.nextInt(40)][DIM];
+            for (double[] frame : frames) {
+                for (int d = 0; d < DIM; d++) {
+                    frame[d] = (random.nextDouble() * 2 - 1) * range * (d + 1);
+                }
+            }
+            templates.add(frames);
+        }
+        return templates;
+    }
+
+    private static int[] wordIds(int count) {
+        int[] ids = new int[count];
+        for (int t = 0; t < count; t++) {
+            ids[t] = t % WORDS.size();
+        }
+        return ids;
+    }
+
+    /**
+     * 每一维在所有模板中的 INT8 量化步长
+     */
+    private static double[] steps(List<double[][]> templates) {
+        double[] min = new double[DIM];
+        double[] max = new double[DIM];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for (double[][] template : templates) {
+            for (double[] frame : template) {
+                for (int d = 0; d < DIM; d++) {
+                    min[d] = Math.min(min[d], frame[d]);
+                    max[d] = Math.max(max[d], frame[d]);
+                }
+            }
+        }
+        double[] steps = new double[DIM];
+        for (int d = 0; d < DIM; d++) {
+            steps[d] = (max[d] - min[d]) / 255;
+        }
+        return steps;
+    }
+
+    private static void assertClose(List<double[][]> expected, TemplateStore store, int first, double[] tolerances) {
+        for (int t = 0; t < expected.size(); t++) {
+            double[][] frames = store.frames(first + t);
+            assertEquals(expected.get(t).length, frames.length);
+            for (int i = 0; i < frames.length; i++) {
+                for (int d = 0; d < DIM; d++) {
+                    assertEquals(expected.get(t)[i][d], frames[i][d], tolerances[d] * (1 + 1e-9),
+                            "模板 " + (first + t) + " 帧 " + i + " 维 " + d);
+                }
+            }
+        }
+    }
+
+    @Test
+    void float64KeepsValuesExactly() {
+        List<double[][]> templates = randomTemplates(new Random(1), 6, 10);
+        for (boolean direct : new boolean[]{false, true}) {
+            TemplateStore store = TemplateStore.of(WORDS, wordIds(6), templates, DIM, TemplateStore.Encoding.FLOAT64, direct);
+            assertEquals(6, store.size());
+            assertEquals(direct, store.isDirect());
+            for (int t = 0; t < templates.size(); t++) {
+                assertTrue(Arrays.deepEquals(templates.get(t), store.frames(t)));
+                assertEquals(WORDS.get(t % WORDS.size()), store.word(t));
+            }
+        }
+    }
+
+    @Test
+    void float32RoundsEachValueToFloat() {
+        List<double[][]> templates = randomTemplates(new Random(2), 6, 10);
+        TemplateStore store = TemplateStore.of(WORDS, wordIds(6), templates, DIM, TemplateStore.Encoding.FLOAT32, false);
+        assertEquals(store.frameCount() * DIM * 4, store.valueBytes());
+        for (int t = 0; t < templates.size(); t++) {
+            double[][] frames = store.frames(t);
+            for (int i = 0; i < frames.length; i++) {
+                for (int d = 0; d < DIM; d++) {
+                    assertEquals((float) templates.get(t)[i][d], frames[i][d]);
+                }
+            }
+        }
+    }
+
+    @Test
+    void int8ErrorIsAtMostHalfAStep() {
+        List<double[][]> templates = randomTemplates(new Random(3), 6, 10);
+        TemplateStore store = TemplateStore.of(WORDS, wordIds(6), templates, DIM, TemplateStore.Encoding.INT8, true);
+        assertEquals(store.frameCount() * DIM, store.valueBytes());
+        double[] halfSteps = steps(templates);
+        for (int d = 0; d < DIM; d++) {
+            halfSteps[d] /= 2;
+        }
+        assertClose(templates, store, 0, halfSteps);
+    }
+
+    @Test
+    void sequenceMatchesFrames() {
+        List<double[][]> templates = randomTemplates(new Random(4), 3, 10);
+        for (TemplateStore.Encoding encoding : TemplateStore.Encoding.values()) {
+            TemplateStore store = TemplateStore.of(WORDS, wordIds(3), templates, DIM, encoding, false);
+            for (int t = 0; t < store.size(); t++) {
+                LocalDistance.Sequence expected = LocalDistance.Sequence.of(store.frames(t));
+                LocalDistance.Sequence actual = store.sequence(t);
+                assertEquals(expected.length, actual.length);
+                for (int d = 0; d <= DIM; d++) {
+                    assertArrayEquals(Arrays.copyOf(expected.columns[d], expected.length),
+                            Arrays.copyOf(actual.columns[d], actual.length), encoding.name());
+                }
+            }
+        }
+    }
+
+    @Test
+    void int8AppendWithinRangeKeepsQuantization() {
+        Random random = new Random(5);
+        List<double[][]> templates = randomTemplates(random, 6, 10);
+        TemplateStore store = TemplateStore.of(WORDS, wordIds(6), templates, DIM, TemplateStore.Encoding.INT8, false);
+        List<double[][]> added = randomTemplates(random, 2, 5);
+        TemplateStore next = store.append(TemplateStore.of(Collections.singletonList("确定"), new int[2], added, DIM,
+                TemplateStore.Encoding.FLOAT64, false));
+        assertEquals(8, next.size());
+        assertTrue(next.sameQuantization(store));
+        for (int t = 0; t < store.size(); t++) {
+            // 沿用量化参数时已有模板的编码整块复制，解码结果不变
+            assertTrue(Arrays.deepEquals(store.frames(t), next.frames(t)));
+        }
+        double[] halfSteps = steps(templates);
+        for (int d = 0; d < DIM; d++) {
+            halfSteps[d] /= 2;
+        }
+        assertClose(added, next, store.size(), halfSteps);
+    }
+
+    @Test
+    void int8AppendOutOfRangeRequantizesWithoutClipping() {
+        Random random = new Random(6);
+        List<double[][]> templates = randomTemplates(random, 6, 10);
+        TemplateStore store = TemplateStore.of(WORDS, wordIds(6), templates, DIM, TemplateStore.Encoding.INT8, false);
+        List<double[][]> added = randomTemplates(random, 2, 40);
+        TemplateStore next = store.append(TemplateStore.of(Arrays.asList("确定", "下一页"), new int[]{0, 1}, added, DIM,
+                TemplateStore.Encoding.FLOAT64, false));
+        assertEquals(8, next.size());
+        assertEquals(Arrays.asList("确定", "取消", "上一页", "下一页"), next.words());
+        assertEquals("下一页", next.word(7));
+        assertFalse(next.sameQuantization(store));
+
+        List<double[][]> all = new ArrayList<>(templates);
+        all.addAll(added);
+        double[] oldSteps = steps(templates);
+        double[] newSteps = steps(all);
+        // 已有模板先按旧参数量化、解码，再按新参数量化，误差至多是两次量化误差之和
+        double[] requantized = new double[DIM];
+        double[] fresh = new double[DIM];
+        for (int d = 0; d < DIM; d++) {
+            requantized[d] = oldSteps[d] / 2 + newSteps[d] / 2;
+            fresh[d] = newSteps[d] / 2;
+        }
+        assertClose(templates, next, 0, requantized);
+        assertClose(added, next, store.size(), fresh);
+    }
+
+    @Test
+    void encodeAndWithoutPreserveTemplates() {
+        List<double[][]> templates = randomTemplates(new Random(7), 6, 10);
+        TemplateStore store = TemplateStore.of(WORDS, wordIds(6), templates, DIM, TemplateStore.Encoding.FLOAT64, false);
+        TemplateStore copy = store.encode(TemplateStore.Encoding.FLOAT64, true);
+        assertTrue(copy.isDirect());
+        assertTrue(Arrays.deepEquals(store.frames().toArray(), copy.frames().toArray()));
+
+        TemplateStore without = store.without("取消");
+        assertEquals(Arrays.asList("确定", "上一页"), without.words());
+        assertArrayEquals(new int[]{0, 2, 3, 5}, store.keptTemplates("取消"));
+        int[] kept = store.keptTemplates("取消");
+        for (int k = 0; k < kept.length; k++) {
+            assertTrue(Arrays.deepEquals(store.frames(kept[k]), without.frames(k)));
+            assertEquals(store.word(kept[k]), without.word(k));
+        }
+    }
+}
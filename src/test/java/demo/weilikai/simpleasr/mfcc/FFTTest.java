@@ -0,0 +1,95 @@
+package demo.weilikai.simpleasr.mfcc;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FFTTest {
+
+    /**
+     * 按定义直接计算的离散傅里叶变换，返回 {实部, 虚部}
+     */
+    private static double[][] dft(double[] re, double[] im) {
+        int n = re.length;
+        double[][] out = new double[2][n];
+        for (int k = 0; k < n; k++) {
+            for (int t = 0; t < n; t++) {
+                double angle = -2 * Math.PI * ((long) k * t % n) / n;
+                out[0][k] += re[t] * Math.cos(angle) - im[t] * Math.sin(angle);
+                out[1][k] += re[t] * Math.sin(angle) + im[t] * Math.cos(angle);
+            }
+        }
+        return out;
+    }
+
+    private static double[] random(Random random, int n) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = random.nextGaussian() * 1000;
+        }
+        return x;
+    }
+
+    private static double norm(double[] re, double[] im) {
+        double sum = 0;
+        for (int i = 0; i < re.length; i++) {
+            sum += re[i] * re[i] + im[i] * im[i];
+        }
+        return Math.sqrt(sum);
+    }
+
+    @Test
+    void complexTransformMatchesDft() {
+        Random random = new Random(1);
+        for (int n = 2; n <= 1024; n <<= 1) {
+            double[] re = random(random, n);
+            double[] im = random(random, n);
+            double[][] expected = dft(re, im);
+            new FFT(n).transform(re, im);
+            double tolerance = 1e-12 * n * norm(expected[0], expected[1]);
+            for (int k = 0; k < n; k++) {
+                assertEquals(expected[0][k], re[k], tolerance, "n=" + n + ", k=" + k);
+                assertEquals(expected[1][k], im[k], tolerance, "n=" + n + ", k=" + k);
+            }
+        }
+    }
+
+    @Test
+    void realEnergiesMatchDft() {
+        Random random = new Random(2);
+        for (int n = 2; n <= 1024; n <<= 1) {
+            double[] x = random(random, n);
+            double[][] expected = dft(x, new double[n]);
+            double[] energies = new double[n];
+            new FFT(n).computeEnergies(x, energies);
+            double scale = norm(expected[0], expected[1]);
+            double tolerance = 1e-12 * n * scale * scale;
+            for (int k = 0; k < n; k++) {
+                double energy = expected[0][k] * expected[0][k] + expected[1][k] * expected[1][k];
+                assertEquals(energy, energies[k], tolerance, "n=" + n + ", k=" + k);
+            }
+        }
+    }
+
+    @Test
+    void staticHelpersAgreeWithInstance() {
+        double[] x = random(new Random(3), 512);
+        double[] energies = new double[x.length];
+        new FFT(x.length).computeEnergies(x, energies);
+        double[] viaComplex = FFT.computeEnergies(FFT.fft(x));
+        double[] viaStatic = FFT.computeFftEnergies(x);
+        for (int k = 0; k < x.length; k++) {
+            assertEquals(energies[k], viaStatic[k]);
+            assertEquals(energies[k], viaComplex[k], 1e-6 * Math.max(1, energies[k]));
+        }
+    }
+
+    @Test
+    void rejectsLengthThatIsNotPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new FFT(384));
+        assertThrows(IllegalArgumentException.class, () -> new FFT(1));
+    }
+}